@@ -16,6 +16,15 @@ public class NetProcess extends VMProcess {
 	super();
     }
 
+    /**
+     * Allocate a networking process to run a program this process execs.
+     *
+     * @return	a new process.
+     */
+    protected UserProcess createChild() {
+	return new NetProcess();
+    }
+
     private static final int
 	syscallConnect = 11,
 	syscallAccept = 12;
@@ -0,0 +1,44 @@
+#!/bin/sh
+
+# Benchmark the thread system under each scheduler.
+#
+# Runs BenchmarkKernel once per scheduler, starting from the settings in
+# nachos.conf, and prints a JSON array holding the results each run
+# reports. Run from this directory after building.
+#
+# usage: benchmark.sh [scheduler ...]
+#
+# Schedulers are named by class, without the package. NACHOS overrides how
+# Nachos is started; RUNS and WARMUP override how many times each case is
+# measured and run beforehand.
+
+NACHOS=${NACHOS:-"java nachos.machine.Machine"}
+SCHEDULERS=${*:-"RoundRobinScheduler PriorityScheduler LotteryScheduler \
+    MLFQScheduler CFSScheduler StrideScheduler"}
+
+conf=${TMPDIR:-/tmp}/benchmark$$.conf
+trap 'rm -f $conf' 0
+
+echo "["
+sep=""
+for sched in $SCHEDULERS; do
+    sed -e "s/^Kernel.kernel.*/Kernel.kernel = nachos.threads.BenchmarkKernel/" \
+	-e "s/^ThreadedKernel.scheduler.*/ThreadedKernel.scheduler = nachos.threads.$sched/" \
+	-e "s/^ElevatorBank.allowElevatorGUI.*/ElevatorBank.allowElevatorGUI = false/" \
+	nachos.conf > $conf
+    echo "BenchmarkKernel.runs = ${RUNS:-3}" >> $conf
+    echo "BenchmarkKernel.warmupRuns = ${WARMUP:-1}" >> $conf
+
+    result=`$NACHOS -[] $conf -- nachos.ag.BenchmarkGrader 2>&1 |
+	grep '^{"scheduler":'`
+    if [ -z "$result" ]; then
+	echo "benchmark.sh: $sched produced no results" >&2
+	continue
+    fi
+
+    printf "%s%s" "$sep" "$result"
+    sep=",
+"
+done
+echo
+echo "]"
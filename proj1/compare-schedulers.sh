@@ -0,0 +1,41 @@
+#!/bin/sh
+
+# Compare schedulers on a mixed workload.
+#
+# Runs the kernel's self-tests under each scheduler with
+# MLFQScheduler.benchmark enabled, starting from the settings in nachos.conf,
+# and prints a table of the interactive threads' response time and the
+# computing threads' throughput that the benchmark reports. Run from this
+# directory after building.
+#
+# usage: compare-schedulers.sh [scheduler ...]
+#
+# Schedulers are named by class, without the package. NACHOS overrides how
+# Nachos is started.
+
+NACHOS=${NACHOS:-"java nachos.machine.Machine"}
+SCHEDULERS=${*:-"RoundRobinScheduler MLFQScheduler"}
+
+conf=${TMPDIR:-/tmp}/schedulers$$.conf
+trap 'rm -f $conf' 0
+
+printf "%-20s %13s %12s %10s %13s\n" \
+    scheduler mean-response max-response work work/1000t
+
+for sched in $SCHEDULERS; do
+    sed -e "s/^ThreadedKernel.scheduler.*/ThreadedKernel.scheduler = nachos.threads.$sched/" \
+	-e "s/^ElevatorBank.allowElevatorGUI.*/ElevatorBank.allowElevatorGUI = false/" \
+	nachos.conf > $conf
+    echo "MLFQScheduler.benchmark = true" >> $conf
+
+    $NACHOS -[] $conf 2>&1 | awk -v sched=$sched '
+	/^MLFQ benchmark .*response mean/ {
+	    mean = $6; max = $8
+	}
+	/^MLFQ benchmark .*units of work/ {
+	    gsub("[()]", ""); work = $4; rate = $11
+	}
+	END {
+	    printf "%-20s %13d %12d %10d %13d\n", sched, mean, max, work, rate
+	}'
+done
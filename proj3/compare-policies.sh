@@ -0,0 +1,52 @@
+#!/bin/sh
+
+# Compare page replacement policies.
+#
+# Runs each test program under each replacement policy and each physical
+# memory size, starting from the settings in nachos.conf, and prints a table
+# of the page faults, evictions, swap I/O and total ticks the kernel reports.
+# Run from this directory after building. Swap-in counts pages read back from
+# the swap file; swap-out counts pages written to it. Pages kept in the
+# compressed swap pool count as neither.
+#
+# usage: compare-policies.sh [program ...]
+#
+# The environment variables POLICIES and FRAMES override the policies and
+# memory sizes tried, and NACHOS overrides how Nachos is started.
+
+NACHOS=${NACHOS:-"java nachos.machine.Machine"}
+POLICIES=${POLICIES:-"FIFO Clock WSClock Aging Random"}
+FRAMES=${FRAMES:-"8 12 16"}
+PROGRAMS=${*:-"matmult.coff sort.coff stride.coff"}
+
+conf=${TMPDIR:-/tmp}/policies$$.conf
+trap 'rm -f $conf' 0
+
+printf "%-14s %-8s %6s %7s %9s %8s %9s %10s\n" \
+    program policy frames faults evictions swap-in swap-out ticks
+
+for prog in $PROGRAMS; do
+    for policy in $POLICIES; do
+	for frames in $FRAMES; do
+	    sed -e "s/^Processor.numPhysPages.*/Processor.numPhysPages = $frames/" \
+		nachos.conf > $conf
+	    echo "VMKernel.replacementPolicy = nachos.vm.${policy}Policy" >> $conf
+
+	    $NACHOS -[] $conf -d f -x $prog 2>&1 | awk \
+		-v prog=$prog -v policy=$policy -v frames=$frames '
+		/^Paging: page faults .*evictions/ {
+		    gsub(",", ""); faults = $4; evictions = $9
+		}
+		/^Swap: reads/ {
+		    gsub("[,(]", ""); swapin = $4; swapout = $8
+		}
+		/^Ticks: total/ {
+		    gsub(",", ""); ticks = $3
+		}
+		END {
+		    printf "%-14s %-8s %6d %7d %9d %8d %9d %10d\n", prog, policy,
+			frames, faults, evictions, swapin, swapout, ticks
+		}'
+	done
+    done
+done
@@ -0,0 +1,91 @@
+#include "stdio.h"
+#include "syscall.h"
+
+#define ENTRIES	16
+#define CHUNK	256
+
+struct {
+    struct io_ring_header header;
+    struct io_submission entries[ENTRIES];
+} sq;
+
+struct {
+    volatile struct io_ring_header header;
+    struct io_completion entries[ENTRIES];
+} cq;
+
+char data[CHUNK];
+char buffers[ENTRIES][CHUNK];
+
+int main() {
+    int fd, i, j, submitted, reaped, spins;
+
+    fd = creat("aio_read.bin");
+    if (fd == -1) {
+        printf("Failed to create aio_read.bin\n");
+        exit(1);
+    }
+    for (i = 0; i < ENTRIES; i++) {
+        for (j = 0; j < CHUNK; j++)
+            data[j] = (char) (i + j);
+        if (write(fd, data, CHUNK) != CHUNK) {
+            printf("Failed to write chunk %d\n", i);
+            exit(1);
+        }
+    }
+
+    if (iosetup(&sq, &cq, ENTRIES) == -1) {
+        printf("iosetup failed\n");
+        exit(1);
+    }
+
+    /* queue one read per chunk, then hand them all over with one trap */
+    for (i = 0; i < ENTRIES; i++) {
+        struct io_submission *s = &sq.entries[sq.header.tail % ENTRIES];
+        s->opcode = IO_READ;
+        s->fd = fd;
+        s->buffer = buffers[i];
+        s->count = CHUNK;
+        s->offset = i * CHUNK;
+        s->userData = i;
+        sq.header.tail++;
+    }
+    submitted = iosubmit(ENTRIES);
+    if (submitted != ENTRIES) {
+        printf("Only %d of %d reads were submitted\n", submitted, ENTRIES);
+        exit(1);
+    }
+
+    /* keep computing until the first completion shows up on its own */
+    spins = 0;
+    while (cq.header.tail == cq.header.head)
+        spins++;
+
+    reaped = 0;
+    while (reaped < ENTRIES) {
+        if (cq.header.tail == cq.header.head && iowait(1) <= 0) {
+            printf("iowait failed\n");
+            exit(1);
+        }
+        while (cq.header.head != cq.header.tail) {
+            struct io_completion *c = &cq.entries[cq.header.head % ENTRIES];
+            if (c->result != CHUNK) {
+                printf("Read %d returned %d\n", c->userData, c->result);
+                exit(1);
+            }
+            for (j = 0; j < CHUNK; j++) {
+                if (buffers[c->userData][j] != (char) (c->userData + j)) {
+                    printf("Read %d has bad data at byte %d\n", c->userData, j);
+                    exit(1);
+                }
+            }
+            cq.header.head++;
+            reaped++;
+        }
+    }
+
+    close(fd);
+    unlink("aio_read.bin");
+    printf("%d reads completed, %d spins while in flight\n", reaped, spins);
+    return 0;
+}
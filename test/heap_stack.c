@@ -0,0 +1,58 @@
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BLOCKS		64
+#define BLOCKSIZE	1000
+
+/* recurse far enough that the stack must grow well past its first page */
+int depth(int n) {
+    char frame[256];
+
+    frame[0] = (char) n;
+    if (n == 0)
+        return 0;
+    return depth(n - 1) + 1 + (frame[0] - (char) n);
+}
+
+int main() {
+    char *blocks[BLOCKS];
+    char *start, *end;
+    int i, j;
+
+    start = sbrk(0);
+
+    for (i = 0; i < BLOCKS; i++) {
+        blocks[i] = malloc(BLOCKSIZE);
+        if (blocks[i] == null) {
+            printf("malloc %d failed\n", i);
+            exit(1);
+        }
+        for (j = 0; j < BLOCKSIZE; j++)
+            blocks[i][j] = (char) (i + j);
+    }
+    for (i = 0; i < BLOCKS; i++) {
+        for (j = 0; j < BLOCKSIZE; j++) {
+            if (blocks[i][j] != (char) (i + j)) {
+                printf("block %d corrupted at byte %d\n", i, j);
+                exit(1);
+            }
+        }
+    }
+
+    end = sbrk(0);
+    printf("heap grew by %d bytes\n", end - start);
+
+    /* give the whole heap back at once; the blocks must not be used again */
+    if (sbrk(start - end) != end || sbrk(0) != start) {
+        printf("failed to shrink heap\n");
+        exit(1);
+    }
+
+    if (sbrk(0x7fffffff) != (void *) -1) {
+        printf("sbrk accepted an impossible increment\n");
+        exit(1);
+    }
+
+    printf("recursed %d levels\n", depth(64));
+    return 0;
+}
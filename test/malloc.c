@@ -0,0 +1,43 @@
+#include "stdlib.h"
+
+/* Each block is preceded by a header. Free blocks are kept on a singly linked
+ * list, and a request is served by the first free block that is big enough;
+ * the heap is only grown with sbrk() when no free block fits.
+ */
+struct header {
+  unsigned int size;		/* bytes available after the header */
+  struct header *next;		/* next free block, if this one is free */
+};
+
+static struct header *freeList = null;
+
+void *malloc(unsigned int size) {
+  struct header *h, **prev;
+
+  size = divRoundUp(size, sizeof(struct header)) * sizeof(struct header);
+
+  for (prev = &freeList; (h = *prev) != null; prev = &h->next) {
+    if (h->size >= size) {
+      *prev = h->next;
+      return h + 1;
+    }
+  }
+
+  h = (struct header *) sbrk(sizeof(struct header) + size);
+  if (h == (struct header *) -1)
+    return null;
+
+  h->size = size;
+  return h + 1;
+}
+
+void free(void *ptr) {
+  struct header *h;
+
+  if (ptr == null)
+    return;
+
+  h = (struct header *) ptr - 1;
+  h->next = freeList;
+  freeList = h;
+}
@@ -6,6 +6,9 @@
 #define MAXARGSIZE	16
 #define MAXARGS		16
 
+#define SAVEDSTDIN	14
+#define SAVEDSTDOUT	15
+
 /**
  * tokenizeCommand
  *
@@ -108,10 +111,100 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
     return numTokens;
 }
 
+static void restoreStdio() {
+    dup2(SAVEDSTDIN, 0);
+    dup2(SAVEDSTDOUT, 1);
+    close(SAVEDSTDIN);
+    close(SAVEDSTDOUT);
+}
+
+/**
+ * reapStages
+ *
+ * Waits for the first numStages commands of a pipeline that could not be
+ * started in full, so that none of them is left behind for a later join(-1)
+ * to collect.
+ */
+static void reapStages(int pids[], int numStages) {
+    int status;
+
+    while (numStages > 0)
+	join(pids[--numStages], &status);
+}
+
+/**
+ * execPipeline
+ *
+ * Runs the commands in argv, which are separated by "|" tokens, connecting the
+ * output of each command to the input of the next with a pipe. The process ID
+ * of each command is stored in pids.
+ *
+ * Returns the number of commands started, or -1 on error, in which case any
+ * commands already started have been waited for.
+ */
+static int execPipeline(int argc, char *argv[], int pids[]) {
+    char prog[BUFFERSIZE];
+    int fds[2];
+    int start, end, numStages = 0;
+
+    /* keep our own input and output so they can be put back afterwards */
+    dup2(0, SAVEDSTDIN);
+    dup2(1, SAVEDSTDOUT);
+
+    for (start = 0; start < argc; start = end + 1) {
+	for (end = start; end < argc && strcmp(argv[end], "|") != 0; end++)
+	    ;
+
+	if (end == start || end == argc - 1) {
+	    restoreStdio();
+	    printf("Invalid null command.\n");
+	    reapStages(pids, numStages);
+	    return -1;
+	}
+
+	if (end < argc) {
+	    if (pipe(fds) == -1) {
+		restoreStdio();
+		printf("pipe failed.\n");
+		reapStages(pids, numStages);
+		return -1;
+	    }
+	    dup2(fds[1], 1);
+	    close(fds[1]);
+	}
+	else {
+	    dup2(SAVEDSTDOUT, 1);
+	}
+
+	strcpy(prog, argv[start]);
+	strcat(prog, ".coff");
+
+	pids[numStages] = exec(prog, end - start, &argv[start]);
+
+	/* the next command reads what this one writes */
+	if (end < argc) {
+	    dup2(fds[0], 0);
+	    close(fds[0]);
+	}
+
+	if (pids[numStages] == -1) {
+	    restoreStdio();
+	    printf("%s: exec failed.\n", argv[start]);
+	    reapStages(pids, numStages);
+	    return -1;
+	}
+	numStages++;
+    }
+
+    restoreStdio();
+    return numStages;
+}
+
 void runline(char* line) {
-    int pid, background, status;
+    int pid, background, status, i;
+    int numStages = 1, pids[MAXARGS];
    
-    char args[BUFFERSIZE], prog[BUFFERSIZE];
+    char args[BUFFERSIZE];
     char *argv[MAXARGS];
 
     int argc = tokenizeCommand(line, MAXARGS, argv, args);
@@ -149,6 +242,19 @@ void runline(char* line) {
 	    }
 	    return;
 	}
+	else if (strcmp(argv[0], "wait")==0) {
+	    if (argc == 1) {
+		pid = join(-1, &status);
+		if (pid == -1)
+		    printf("wait: No children.\n");
+		else
+		    printf("\n[%d] Done (%d)\n", pid, status);
+	    }
+	    else {
+		printf("wait: Expression Syntax.\n");
+	    }
+	    return;
+	}
 	else if (strcmp(argv[0], "join")==0) {
 	    if (argc == 2) {
 		pid = atoi(argv[1]);
@@ -159,14 +265,10 @@ void runline(char* line) {
 	    }
 	}
 	else {
-	    strcpy(prog, argv[0]);
-	    strcat(prog, ".coff");
-
-	    pid = exec(prog, argc, argv);
-	    if (pid == -1) {
-		printf("%s: exec failed.\n", argv[0]);
+	    numStages = execPipeline(argc, argv, pids);
+	    if (numStages == -1)
 		return;
-	    }
+	    pid = pids[numStages-1];
 	}
 
 	if (!background) {
@@ -181,6 +283,10 @@ void runline(char* line) {
 		printf("\n[%d] Done (%d)\n", pid, status);
 		break;
 	    }
+
+	    /* the rest of a pipeline has finished, or will once it sees EOF */
+	    for (i = 0; i < numStages-1; i++)
+		join(pids[i], &status);
 	}
 	else {
 	    printf("\n[%d]\n", pid);
@@ -67,3 +67,9 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(iosetup, syscallIoSetup)
+	SYSCALLSTUB(iosubmit, syscallIoSubmit)
+	SYSCALLSTUB(iowait, syscallIoWait)
+	SYSCALLSTUB(sbrk, syscallSbrk)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(dup2, syscallDup2)
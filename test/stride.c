@@ -0,0 +1,45 @@
+/* stride.c
+ *    Test program to compare page replacement policies.
+ *
+ *    Walks an array larger than physical memory with a fixed stride,
+ *    updating a small hot array after every step. A policy that keeps
+ *    recently used pages keeps the hot pages in memory; one that does not
+ *    faults on them again and again. Usage: stride [stride [passes]], with
+ *    the stride in words.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define SWEEPSIZE	(32*256)	/* 32 pages of ints */
+#define HOTSIZE		(2*256)		/* 2 pages of ints */
+
+int sweep[SWEEPSIZE];
+int hot[HOTSIZE];
+
+int
+main(int argc, char** argv)
+{
+  int stride = 300, passes = 4;
+  int pass, i, j = 0, sum = 0;
+
+  if (argc > 1)
+    stride = atoi(argv[1]);
+  if (argc > 2)
+    passes = atoi(argv[2]);
+
+  for (pass = 0; pass < passes; pass++) {
+    for (i = 0; i < SWEEPSIZE/8; i++) {
+      j = (j + stride) % SWEEPSIZE;
+      sweep[j] += pass;
+      hot[i % HOTSIZE] += sweep[j];
+    }
+  }
+
+  for (i = 0; i < HOTSIZE; i++)
+    sum += hot[i];
+  printf("%d\n", sum);
+
+  return 0;
+}
@@ -25,6 +25,12 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallIoSetup		13
+#define syscallIoSubmit		14
+#define syscallIoWait		15
+#define syscallSbrk		16
+#define syscallPipe		17
+#define syscallDup2		18
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -106,6 +112,10 @@ int exec(char *file, int argc, char *argv[]);
  * If the child exited normally, returns 1. If the child exited as a result of
  * an unhandled exception, returns 0. If processID does not refer to a child
  * process of the current process, returns -1.
+ *
+ * If processID is -1, waits for whichever child exits first (or returns
+ * immediately if one already has), and returns that child's process ID
+ * instead. Returns -1 if the current process has no children left to join.
  */
 int join(int processID, int *status);
 
@@ -257,6 +267,123 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* ASYNCHRONOUS I/O SYSCALLS: iosetup, iosubmit, iowait
+ *
+ * A process can keep many reads and writes in flight at once through a pair
+ * of rings in its own memory. Requests are placed in the submission ring and
+ * handed to the kernel with iosubmit(). The kernel performs them in the
+ * background and places each result in the completion ring, where the process
+ * can find it without making another system call.
+ *
+ * Both rings start with a struct io_ring_header. head and tail are
+ * free-running counters; entry i lives in slot (i % entries). The producer of
+ * a ring only advances tail, and the consumer only advances head: the process
+ * produces submissions and consumes completions, the kernel does the reverse.
+ */
+#define IO_READ		0
+#define IO_WRITE	1
+
+struct io_ring_header {
+    int head;
+    int tail;
+};
+
+/* An offset of -1 transfers at the current position of a stream instead of
+ * at a fixed offset in a file.
+ */
+struct io_submission {
+    int opcode;
+    int fd;
+    void *buffer;
+    int count;
+    int offset;
+    int userData;
+};
+
+/* result is the number of bytes transferred, or -1 if an error occurred. */
+struct io_completion {
+    int userData;
+    int result;
+};
+
+/**
+ * Register a submission ring and a completion ring, each with room for the
+ * specified number of entries (at most 256). sq must point to a
+ * struct io_ring_header followed by entries struct io_submission, and cq to
+ * a struct io_ring_header followed by entries struct io_completion. Both
+ * headers are reset to zero. A process can only register one pair of rings.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int iosetup(void *sq, void *cq, int entries);
+
+/**
+ * Hand up to count new entries of the submission ring to the kernel. The
+ * kernel never accepts more requests than the completion ring has room to
+ * report, so fewer entries may be accepted than were requested.
+ *
+ * Returns the number of entries accepted, or -1 if an error occurred.
+ */
+int iosubmit(int count);
+
+/**
+ * Wait until at least minComplete completions are waiting to be reaped, or
+ * until no requests are left in flight.
+ *
+ * Returns the number of completions waiting, or -1 if an error occurred.
+ */
+int iowait(int minComplete);
+
+/* MEMORY MANAGEMENT SYSCALLS: sbrk
+ *
+ * A process's heap starts just past its program's data and grows towards the
+ * stack. Pages of the heap and of the stack are given zero-filled memory the
+ * first time they are touched, so a process only uses as much physical memory
+ * as it actually touches.
+ */
+
+/**
+ * Move the end of the heap (the program break) by increment bytes, which may
+ * be negative. Memory between the old and new break is zero-filled when first
+ * touched; pages entirely above a lowered break are given back to the kernel.
+ *
+ * Returns the old break, or (void *) -1 if the new break would fall below the
+ * start of the heap or past the largest size the heap may grow to.
+ */
+void *sbrk(int increment);
+
+/* PIPE SYSCALLS: pipe, dup2
+ *
+ * A pipe carries data from one process to another through a buffer in kernel
+ * memory. A process started with exec() shares its parent's file descriptors
+ * 0 and 1, so a shell can connect commands together by pointing its own
+ * descriptor 0 or 1 at the ends of a pipe with dup2() before each exec().
+ */
+
+/**
+ * Create a pipe, and store a file descriptor for its read end in fds[0] and
+ * one for its write end in fds[1].
+ *
+ * read() on the read end waits until some data is available and returns as
+ * much as is available, up to count bytes. Once every descriptor for the write
+ * end has been closed and all data has been read, read() returns 0. write() on
+ * the write end waits until all of the data fits in the pipe, and returns -1
+ * if every descriptor for the read end has been closed.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/**
+ * Make newfd refer to the same file as oldfd, first closing whatever newfd
+ * referred to before. The two descriptors share a file position, and the file
+ * stays open until both have been closed.
+ *
+ * Returns newfd on success, or -1 if oldfd is not open or newfd is not a valid
+ * file descriptor.
+ */
+int dup2(int oldfd, int newfd);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
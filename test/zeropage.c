@@ -0,0 +1,51 @@
+/* zeropage.c
+ *    Test program for the shared zero page.
+ *
+ *    Reads every page of a large uninitialized array and a large piece of
+ *    heap, which should all read as zeros, then writes one page in eight
+ *    and checks that only those pages changed. Pages that are only read
+ *    share a single frame of zeros, so several copies of this program can
+ *    run at once in far less memory than their address spaces add up to.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PAGEINTS	256		/* ints per page */
+#define NUMPAGES	24
+
+int bss[NUMPAGES*PAGEINTS];
+
+int
+check(int *array)
+{
+  int i;
+
+  for (i = 0; i < NUMPAGES*PAGEINTS; i += PAGEINTS)
+    if (array[i] != 0 || array[i+PAGEINTS-1] != 0)
+      return 0;
+
+  for (i = 0; i < NUMPAGES*PAGEINTS; i += 8*PAGEINTS)
+    array[i] = i + 1;
+
+  for (i = 0; i < NUMPAGES*PAGEINTS; i += PAGEINTS)
+    if (array[i] != ((i % (8*PAGEINTS) == 0) ? i + 1 : 0))
+      return 0;
+
+  return 1;
+}
+
+int
+main(int argc, char** argv)
+{
+  int *heap = (int *) sbrk(NUMPAGES*PAGEINTS*sizeof(int));
+
+  if (heap == (int *) -1 || !check(bss) || !check(heap)) {
+    printf("zero page FAIL\n");
+    return 1;
+  }
+
+  printf("zero page ok\n");
+  return 0;
+}
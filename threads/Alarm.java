@@ -28,7 +28,8 @@ public class Alarm {
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, unless the scheduler decides it should keep
+     * running.
      */
     public void timerInterrupt() {
         boolean state = Machine.interrupt().disable(); 
@@ -43,8 +44,10 @@ public class Alarm {
             else
                 break;
 	}
+        boolean preempt = ThreadedKernel.scheduler.timerInterrupt();
         Machine.interrupt().restore(state);
-	KThread.currentThread().yield();
+        if (preempt)
+	    KThread.currentThread().yield();
     }
 
     /**
@@ -0,0 +1,297 @@
+package nachos.threads;
+
+import nachos.machine.*;
+import nachos.ag.BenchmarkGrader;
+
+/**
+ * A kernel that measures the thread system instead of testing it. Each case
+ * exercises one part of <tt>nachos.threads</tt> under whatever scheduler
+ * <tt>ThreadedKernel.scheduler</tt> names:
+ *
+ * <ul>
+ * <li><tt>fork-join</tt>: forking threads that do nothing, and joining
+ *	them, a hundred at a time;
+ * <li><tt>yield-pingpong</tt>: two threads yielding to each other;
+ * <li><tt>lock-handoff</tt>: two threads passing a lock back and forth,
+ *	each yielding while it holds the lock so the other is waiting when
+ *	it is released;
+ * <li><tt>semaphore-pingpong</tt>: two threads alternating through a pair
+ *	of semaphores;
+ * <li><tt>communicator</tt>: two speakers and two listeners exchanging
+ *	words;
+ * <li><tt>alarm-sleepers</tt>: 200 threads sleeping on the alarm ten times
+ *	each, for different lengths of time.
+ * </ul>
+ *
+ * <p>
+ * Every case is run <tt>BenchmarkKernel.warmupRuns</tt> times unmeasured
+ * (by default once), so the host's compiler has seen the code, and then
+ * <tt>BenchmarkKernel.runs</tt> times (by default 3). Each measured run
+ * reports the host time it took, the simulated ticks, and the bytes the
+ * host allocated on every thread taking part. Counting allocations needs
+ * privilege, so they are only reported when Nachos is run with
+ * <tt>-- nachos.ag.BenchmarkGrader</tt>, and are -1 otherwise.
+ *
+ * <p>
+ * The results are printed as a single line of JSON, starting
+ * <tt>{"scheduler":</tt>, which <tt>proj1/benchmark.sh</tt> collects for
+ * each scheduler. Simulated ticks depend only on the random seed, so they
+ * repeat exactly from run to run of Nachos.
+ *
+ * <p>
+ * A Nachos machine can have at most <tt>TCB.maxThreads</tt> threads at
+ * once, so the alarm case is limited to 200 sleepers; they sleep 2000 times
+ * in all.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchmarkKernel() {
+	super();
+    }
+
+    /**
+     * The benchmark kernel runs no self-tests, so that the measurements
+     * start from a quiet machine.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run every case and print the results.
+     */
+    public void run() {
+	int warmupRuns = Config.getInteger("BenchmarkKernel.warmupRuns", 1);
+	int runs = Config.getInteger("BenchmarkKernel.runs", 3);
+
+	StringBuilder json = new StringBuilder();
+	json.append("{\"scheduler\":\"")
+	    .append(scheduler.getClass().getName())
+	    .append("\",\"results\":[");
+
+	boolean first = true;
+	for (int c=0; c<cases.length; c++) {
+	    for (int i=0; i<warmupRuns; i++)
+		measure(cases[c]);
+
+	    for (int i=0; i<runs; i++) {
+		Result result = measure(cases[c]);
+
+		if (!first)
+		    json.append(",");
+		first = false;
+		json.append("{\"case\":\"").append(cases[c].name)
+		    .append("\",\"run\":").append(i)
+		    .append(",\"operations\":").append(cases[c].operations)
+		    .append(",\"wallNanos\":").append(result.wallNanos)
+		    .append(",\"ticks\":").append(result.ticks)
+		    .append(",\"allocatedBytes\":")
+		    .append(result.allocatedBytes)
+		    .append("}");
+	    }
+	}
+	json.append("]}");
+
+	System.out.println(json);
+    }
+
+    /**
+     * Run a case once, measuring it.
+     */
+    private Result measure(Case benchmark) {
+	allocatedBytes = 0;
+	long startBytes = allocatedBytes();
+	long startTicks = Machine.timer().getTime();
+	long startNanos = System.nanoTime();
+
+	benchmark.run();
+
+	Result result = new Result();
+	result.wallNanos = System.nanoTime() - startNanos;
+	result.ticks = Machine.timer().getTime() - startTicks;
+
+	long endBytes = allocatedBytes();
+	if (startBytes == -1 || endBytes == -1 || allocatedBytes == -1)
+	    result.allocatedBytes = -1;
+	else
+	    result.allocatedBytes = endBytes - startBytes + allocatedBytes;
+
+	return result;
+    }
+
+    /**
+     * Return the bytes the host has allocated on the current thread since
+     * it started, or -1 if they cannot be counted. Only
+     * <tt>nachos.ag.BenchmarkGrader</tt> has the privilege to ask the JVM.
+     */
+    private static long allocatedBytes() {
+	if (!(Machine.autoGrader() instanceof BenchmarkGrader))
+	    return -1;
+
+	return ((BenchmarkGrader) Machine.autoGrader()).getAllocatedBytes();
+    }
+
+    /**
+     * Fork a thread for a case, which adds what it allocated to the case's
+     * total as it finishes.
+     */
+    private KThread fork(final Runnable target) {
+	KThread thread = new KThread(new Runnable() {
+		public void run() {
+		    target.run();
+
+		    long bytes = allocatedBytes();
+		    if (bytes == -1)
+			allocatedBytes = -1;
+		    else if (allocatedBytes != -1)
+			allocatedBytes += bytes;
+		}
+	    });
+	thread.fork();
+	return thread;
+    }
+
+    private static void joinAll(KThread[] threads) {
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+    }
+
+    /** A benchmark case. */
+    private abstract class Case {
+	Case(String name, int operations) {
+	    this.name = name;
+	    this.operations = operations;
+	}
+
+	abstract void run();
+
+	String name;
+	int operations;
+    }
+
+    /** The measurements of one run of a case. */
+    private static class Result {
+	long wallNanos;
+	long ticks;
+	long allocatedBytes;
+    }
+
+    private static final int numForks = 1000, forkBatch = 100;
+    private static final int numYields = 10000;
+    private static final int numHandoffs = 5000;
+    private static final int numRoundTrips = 10000;
+    private static final int numWords = 5000;
+    private static final int numSleepers = 200, numSleeps = 10;
+
+    private Case[] cases = {
+	new Case("fork-join", numForks) {
+	    void run() {
+		Runnable nothing = new Runnable() {
+			public void run() {
+			}
+		    };
+		for (int i=0; i<numForks; i+=forkBatch) {
+		    KThread[] threads = new KThread[forkBatch];
+		    for (int j=0; j<forkBatch; j++)
+			threads[j] = fork(nothing);
+		    joinAll(threads);
+		}
+	    }
+	},
+
+	new Case("yield-pingpong", 2*numYields) {
+	    void run() {
+		Runnable yielder = new Runnable() {
+			public void run() {
+			    for (int i=0; i<numYields; i++)
+				KThread.yield();
+			}
+		    };
+		joinAll(new KThread[] { fork(yielder), fork(yielder) });
+	    }
+	},
+
+	new Case("lock-handoff", 2*numHandoffs) {
+	    void run() {
+		final Lock lock = new Lock();
+		Runnable contender = new Runnable() {
+			public void run() {
+			    for (int i=0; i<numHandoffs; i++) {
+				lock.acquire();
+				KThread.yield();
+				lock.release();
+			    }
+			}
+		    };
+		joinAll(new KThread[] { fork(contender), fork(contender) });
+	    }
+	},
+
+	new Case("semaphore-pingpong", numRoundTrips) {
+	    void run() {
+		final Semaphore ping = new Semaphore(0);
+		final Semaphore pong = new Semaphore(0);
+		KThread pinger = fork(new Runnable() {
+			public void run() {
+			    for (int i=0; i<numRoundTrips; i++) {
+				ping.V();
+				pong.P();
+			    }
+			}
+		    });
+		KThread ponger = fork(new Runnable() {
+			public void run() {
+			    for (int i=0; i<numRoundTrips; i++) {
+				ping.P();
+				pong.V();
+			    }
+			}
+		    });
+		joinAll(new KThread[] { pinger, ponger });
+	    }
+	},
+
+	new Case("communicator", numWords) {
+	    void run() {
+		final Communicator communicator = new Communicator();
+		Runnable speaker = new Runnable() {
+			public void run() {
+			    for (int i=0; i<numWords/2; i++)
+				communicator.speak(i);
+			}
+		    };
+		Runnable listener = new Runnable() {
+			public void run() {
+			    for (int i=0; i<numWords/2; i++)
+				communicator.listen();
+			}
+		    };
+		joinAll(new KThread[] { fork(speaker), fork(listener),
+					fork(speaker), fork(listener) });
+	    }
+	},
+
+	new Case("alarm-sleepers", numSleepers*numSleeps) {
+	    void run() {
+		KThread[] threads = new KThread[numSleepers];
+		for (int i=0; i<numSleepers; i++) {
+		    final long ticks = 100 * (1 + (i*37) % 50);
+		    threads[i] = fork(new Runnable() {
+			    public void run() {
+				for (int j=0; j<numSleeps; j++)
+				    alarm.waitUntil(ticks);
+			    }
+			});
+		}
+		joinAll(threads);
+	    }
+	},
+    };
+
+    /**
+     * The bytes allocated by the threads of the case being measured, or -1
+     * if they cannot be counted.
+     */
+    private long allocatedBytes;
+}
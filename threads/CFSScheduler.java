@@ -0,0 +1,453 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler, after the manner of Linux's CFS. Each thread
+ * has a virtual runtime: the time it has run, scaled down by its weight, so
+ * that a thread of twice the weight accumulates virtual runtime half as
+ * fast. The processor always goes to the ready thread with the least
+ * virtual runtime, so each thread's share of the processor is its weight's
+ * share of the total weight of the threads ready to run.
+ *
+ * <p>
+ * A thread's weight comes from its priority, from <tt>priorityMinimum</tt>
+ * to <tt>priorityMaximum</tt>; each step up doubles the weight, and a thread
+ * of the default priority has weight <tt>weightDefault</tt>, at which
+ * virtual runtime and real time are the same. The threads ready to run are
+ * kept in a red-black tree (a <tt>TreeSet</tt>) ordered by virtual runtime,
+ * so a thread is added or picked in time logarithmic in their number.
+ *
+ * <p>
+ * Runtime is charged from the timer: when a thread leaves the processor,
+ * and on every timer interrupt. On a timer interrupt the running thread is
+ * preempted if a ready thread's virtual runtime is less than its own by more
+ * than <tt>CFSScheduler.granularity</tt> ticks (by default 0). The queue
+ * tracks the least virtual runtime it has dispatched; a thread new to the
+ * queue, or woken after blocking, starts no lower than that, so it cannot
+ * claim the time that passed while it was not ready.
+ *
+ * <p>
+ * Only the processor is scheduled this way. Every other queue is an ordinary
+ * FIFO queue, and no priority is transferred.
+ */
+public class CFSScheduler extends RoundRobinScheduler {
+    /**
+     * Allocate a new completely fair scheduler, reading its granularity from
+     * the configuration.
+     */
+    public CFSScheduler() {
+	this(Config.getInteger("CFSScheduler.granularity", 0));
+    }
+
+    /**
+     * Allocate a new completely fair scheduler.
+     *
+     * @param	granularity	how far, in virtual ticks, a ready thread must
+     *				be behind the running one to preempt it.
+     */
+    public CFSScheduler(long granularity) {
+	Lib.assertTrue(granularity >= 0);
+	this.granularity = granularity;
+    }
+
+    /**
+     * Allocate the queue of threads ready to run, ordered by virtual
+     * runtime.
+     *
+     * @return	a new fair queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new FairQueue();
+	return readyQueue;
+    }
+
+    /**
+     * Charge the running thread for the time since it was last charged, and
+     * preempt it if a ready thread has fallen far enough behind it.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (readyQueue == null)
+	    return true;
+
+	KThread running = readyQueue.running;
+	if (running == null || running != KThread.currentThread())
+	    return true;
+
+	readyQueue.charge(Machine.timer().getTime());
+
+	ThreadState first = readyQueue.pickNextThread();
+	return first != null
+	    && getThreadState(running).vruntime
+	       > first.vruntime + granularity;
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getThreadState(thread).priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Return a thread's virtual runtime.
+     *
+     * @param	thread	the thread.
+     * @return	the thread's virtual runtime, in ticks at the default weight.
+     */
+    public long getVirtualRuntime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).vruntime;
+    }
+
+    /**
+     * Return the weight of a priority.
+     *
+     * @param	priority	the priority.
+     * @return	the weight of a thread with that priority.
+     */
+    public static int getWeight(int priority) {
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	return weightDefault << priority >> priorityDefault;
+    }
+
+    /**
+     * The default priority for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum priority that a thread can have.
+     */
+    public static final int priorityMaximum = 7;
+    /**
+     * The weight of a thread of the default priority.
+     */
+    public static final int weightDefault = 1024;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Test if this module is working: dispatch in order of virtual runtime,
+     * charging by weight, and placing threads that join the queue. Uses a
+     * private scheduler and threads that are never forked, so it works
+     * whatever scheduler the kernel runs.
+     */
+    public static void selfTest() {
+	System.out.println("CFSScheduler.java tests:");
+
+	CFSScheduler sched = new CFSScheduler(0);
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] t = new KThread[3];
+	for (int i=0; i<t.length; i++)
+	    t[i] = new KThread().setName("c" + i);
+
+	FairQueue ready = (FairQueue) sched.newReadyQueue();
+	ready.acquire(t[0]);
+
+	// a thread of twice the weight is charged half the virtual time
+	sched.setPriority(t[1], priorityDefault+1);
+	ThreadState s0 = sched.getThreadState(t[0]);
+	ThreadState s1 = sched.getThreadState(t[1]);
+	sched.charge(s0, 1000);
+	sched.charge(s1, 1000);
+	Lib.assertTrue(s0.vruntime == 1000 && s1.vruntime == 500);
+	sched.setPriority(t[1], priorityDefault);
+
+	// the least virtual runtime goes first; a new thread starts at the
+	// least virtual runtime dispatched so far, behind the threads there
+	ready.running = null;
+	ready.waitForAccess(t[0]);
+	ready.waitForAccess(t[1]);
+	Lib.assertTrue(ready.nextThread() == t[1]);
+	Lib.assertTrue(ready.minVruntime == 500);
+	ready.waitForAccess(t[2]);
+	Lib.assertTrue(sched.getVirtualRuntime(t[2]) == 500);
+	sched.charge(s1, 100);
+	ready.running = null;
+	ready.waitForAccess(t[1]);
+	Lib.assertTrue(ready.nextThread() == t[2]);
+	Lib.assertTrue(ready.nextThread() == t[1]);
+	Lib.assertTrue(ready.nextThread() == t[0]);
+	Lib.assertTrue(ready.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+	System.out.println("CFSScheduler: ok");
+    }
+
+    /**
+     * Report how fairly the kernel's scheduler shares the processor. Forks
+     * eight threads of priorities 1, 1, 1, 1, 2, 2, 3 and 4, which compute
+     * without blocking for a fixed stretch of time, and prints the share of
+     * the processor each one got next to its weight's share of the total.
+     */
+    public static void fairnessReport() {
+	final int[] priorities = { 1, 1, 1, 1, 2, 2, 3, 4 };
+	final long duration = 400000;
+
+	final long[] work = new long[priorities.length];
+	final long endTime = Machine.timer().getTime() + duration;
+
+	KThread[] threads = new KThread[priorities.length];
+	for (int i=0; i<threads.length; i++) {
+	    final int which = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (Machine.timer().getTime() < endTime) {
+			    boolean intStatus = Machine.interrupt().disable();
+			    Machine.interrupt().restore(intStatus);
+			    work[which]++;
+			}
+		    }
+		}).setName("fair " + i);
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<threads.length; i++)
+	    ThreadedKernel.scheduler.setPriority(threads[i], priorities[i]);
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	long totalWork = 0, totalWeight = 0;
+	for (int i=0; i<threads.length; i++) {
+	    totalWork += work[i];
+	    totalWeight += getWeight(priorities[i]);
+	}
+
+	String name = ThreadedKernel.scheduler.getClass().getName();
+	System.out.println("CFS fairness (" + name + "): " + threads.length
+			   + " threads, " + totalWork*Stats.KernelTick
+			   + " ticks of work");
+	double worst = 0;
+	for (int i=0; i<threads.length; i++) {
+	    double expected = (double) getWeight(priorities[i]) / totalWeight;
+	    double observed = (double) work[i] / totalWork;
+	    worst = Math.max(worst, Math.abs(observed - expected) / expected);
+	    System.out.println("  " + threads[i].getName() + ": priority "
+			       + priorities[i] + ", weight "
+			       + getWeight(priorities[i]) + ", expected "
+			       + Math.round(expected*1e4)/1e2 + "%, got "
+			       + Math.round(observed*1e4)/1e2 + "%");
+	}
+	System.out.println("CFS fairness (" + name
+			   + "): worst relative error "
+			   + Math.round(worst*1e4)/1e2 + "%");
+    }
+
+    /**
+     * Charge a thread for time it has run, scaled by its weight.
+     */
+    private void charge(ThreadState state, long ticks) {
+	state.vruntime += ticks * weightDefault / getWeight(state.priority);
+    }
+
+    /**
+     * The queue of threads ready to run, ordered by virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	/**
+	 * Add a thread to the tree. A thread other than the one this queue
+	 * last dispatched was blocked, or is new, and is first brought up to
+	 * the least virtual runtime dispatched; the running thread, yielding,
+	 * is charged first.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (thread == running) {
+		charge(Machine.timer().getTime());
+		running = null;
+	    }
+	    else {
+		state.vruntime = Math.max(state.vruntime, minVruntime);
+	    }
+
+	    state.arrival = numArrivals++;
+	    tree.add(state);
+	}
+
+	/**
+	 * Charge the thread leaving the processor, if it was not already
+	 * charged when it yielded, and dispatch the thread with the least
+	 * virtual runtime.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long now = Machine.timer().getTime();
+	    if (running != null)
+		charge(now);
+
+	    running = null;
+	    ThreadState next = tree.pollFirst();
+	    if (next == null)
+		return null;
+
+	    minVruntime = Math.max(minVruntime, next.vruntime);
+	    next.sliceStart = now;
+	    running = next.thread;
+	    return running;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(tree.isEmpty());
+
+	    running = thread;
+	    getThreadState(thread).sliceStart = Machine.timer().getTime();
+	}
+
+	/**
+	 * Return the thread with the least virtual runtime, without removing
+	 * it.
+	 *
+	 * @return	the next thread to be dispatched, or <tt>null</tt>.
+	 */
+	protected ThreadState pickNextThread() {
+	    return tree.isEmpty() ? null : tree.first();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=tree.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + "(" + state.vruntime + ") ");
+	    }
+	}
+
+	/**
+	 * Charge the running thread for the time since it was dispatched or
+	 * last charged.
+	 */
+	void charge(long now) {
+	    ThreadState state = getThreadState(running);
+	    CFSScheduler.this.charge(state, now - state.sliceStart);
+	    state.sliceStart = now;
+	}
+
+	/** The thread this queue last dispatched, if it is still running. */
+	KThread running = null;
+	/** The least virtual runtime dispatched, which never decreases. */
+	long minVruntime = 0;
+
+	/**
+	 * The threads ready to run, by virtual runtime and then by when they
+	 * were added. A thread's virtual runtime only changes while it is
+	 * out of the tree.
+	 */
+	private TreeSet<ThreadState> tree =
+	    new TreeSet<ThreadState>(new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			if (a.vruntime != b.vruntime)
+			    return (a.vruntime < b.vruntime) ? -1 : 1;
+			return Long.compare(a.arrival, b.arrival);
+		    }
+		});
+	private long numArrivals = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority and virtual runtime.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/** The thread with which this object is associated. */
+	KThread thread;
+	/** The priority of the associated thread. */
+	int priority = priorityDefault;
+	/** The associated thread's virtual runtime. */
+	long vruntime = 0;
+	/** When the associated thread was dispatched or last charged. */
+	long sliceStart = 0;
+	/** When the associated thread was added to the tree, for ties. */
+	long arrival;
+    }
+
+    private long granularity;
+
+    /** The queue of threads ready to run, once the kernel has made it. */
+    private FairQueue readyQueue = null;
+}
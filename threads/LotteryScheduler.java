@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,6 +21,20 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue gives every waiting thread a slot, and keeps the threads'
+ * tickets in a Fenwick tree (a binary indexed tree) over the slots, so
+ * adding a thread, removing one, changing its tickets and drawing the winner
+ * all take time logarithmic in the number of threads waiting; the draw walks
+ * down the tree to the slot whose running total first exceeds the winning
+ * ticket. Slots are reused as threads leave, and the tree doubles when it
+ * fills. A thread's priority is its own number of tickets, from 1 to
+ * <tt>Integer.MAX_VALUE</tt>; its effective tickets, which may be more, are
+ * kept as a <tt>long</tt>. A thread holding queues that transfer priority
+ * keeps the sum of the tickets waiting on them, and a change in a thread's
+ * effective tickets is carried, as a difference, along the chain of holders
+ * it waits behind, visiting each thread at most once.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -32,7 +42,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +52,542 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).tickets;
+    }
+
+    /**
+     * Return the effective tickets of a thread, or
+     * <tt>Integer.MAX_VALUE</tt> if it holds more than that.
+     */
+    public int getEffectivePriority(KThread thread) {
+	return (int) Math.min(getEffectiveTickets(thread), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return the effective tickets of a thread: its own tickets plus all
+     * those transferred to it.
+     *
+     * @param	thread	the thread.
+     * @return	the thread's effective tickets.
+     */
+    public long getEffectiveTickets(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).getEffectiveTickets();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The fewest tickets a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The most tickets a thread can have of its own.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * Test if this module is working: the share of draws each thread wins,
+     * tickets beyond the range of an <tt>int</tt>, growing a queue, and
+     * transfer along a chain of locks. Uses a private scheduler and threads
+     * that are never forked, so it works whatever scheduler the kernel runs.
+     */
+    public static void selfTest() {
+	System.out.println("LotteryScheduler.java tests:");
+
+	LotteryScheduler sched = new LotteryScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] t = new KThread[3];
+	for (int i=0; i<t.length; i++)
+	    t[i] = new KThread().setName("l" + i);
+
+	// each thread wins in proportion to its tickets
+	ThreadQueue ready = sched.newThreadQueue(false);
+	int[] tickets = { 1, 2, 7 };
+	int[] wins = new int[t.length];
+	for (int i=0; i<t.length; i++) {
+	    sched.setPriority(t[i], tickets[i]);
+	    ready.waitForAccess(t[i]);
+	}
+	int draws = 20000;
+	for (int i=0; i<draws; i++) {
+	    KThread winner = ready.nextThread();
+	    wins[Integer.parseInt(winner.getName().substring(1))]++;
+	    ready.waitForAccess(winner);
+	}
+	for (int i=0; i<t.length; i++)
+	    Lib.assertTrue(Math.abs((double) wins[i]/draws - tickets[i]/10.0)
+			   < 0.02);
+	for (int i=0; i<t.length; i++)
+	    Lib.assertTrue(ready.nextThread() != null);
+	Lib.assertTrue(ready.nextThread() == null);
+
+	// a queue grows past its first tree, and gives every thread back
+	KThread[] many = new KThread[100];
+	for (int i=0; i<many.length; i++) {
+	    many[i] = new KThread().setName("m" + i);
+	    ready.waitForAccess(many[i]);
+	}
+	java.util.HashSet<KThread> drawn = new java.util.HashSet<KThread>();
+	for (int i=0; i<many.length; i++)
+	    Lib.assertTrue(drawn.add(ready.nextThread()));
+	Lib.assertTrue(ready.nextThread() == null);
+
+	// t0 holds lock1; t1 holds lock2 and waits for lock1; t2 waits for
+	// lock2, so both t1's and t2's tickets reach t0
+	ThreadQueue lock1 = sched.newThreadQueue(true);
+	ThreadQueue lock2 = sched.newThreadQueue(true);
+	lock1.acquire(t[0]);
+	lock2.acquire(t[1]);
+	lock1.waitForAccess(t[1]);
+	lock2.waitForAccess(t[2]);
+	Lib.assertTrue(sched.getEffectiveTickets(t[0]) == 10);
+
+	sched.setPriority(t[2], Integer.MAX_VALUE);
+	Lib.assertTrue(sched.getEffectiveTickets(t[1])
+		       == 2 + (long) Integer.MAX_VALUE);
+	Lib.assertTrue(sched.getEffectiveTickets(t[0])
+		       == 3 + (long) Integer.MAX_VALUE);
+	Lib.assertTrue(sched.getEffectivePriority(t[0]) == Integer.MAX_VALUE);
+	sched.setPriority(t[0], Integer.MAX_VALUE);
+	Lib.assertTrue(sched.getEffectiveTickets(t[0])
+		       == 2 + 2 * (long) Integer.MAX_VALUE);
+	sched.setPriority(t[0], 1);
+	sched.setPriority(t[2], 7);
+
+	// t0 releases lock1 to t1, and gets nothing transferred any more
+	Lib.assertTrue(lock1.nextThread() == t[1]);
+	Lib.assertTrue(sched.getEffectiveTickets(t[0]) == 1);
+	Lib.assertTrue(sched.getEffectiveTickets(t[1]) == 9);
+	Lib.assertTrue(lock2.nextThread() == t[2]);
+	Lib.assertTrue(sched.getEffectiveTickets(t[1]) == 2);
+	Lib.assertTrue(lock1.nextThread() == null
+		       && sched.getEffectiveTickets(t[1]) == 2);
+
+	Machine.interrupt().restore(intStatus);
+	System.out.println("LotteryScheduler: ok");
     }
+
+    /**
+     * Measure the draw on a single ready queue of 10,000 threads, in ten
+     * classes holding 1,000 to 10,000 tickets each. Every draw takes the
+     * winner off the queue and puts it back, as a thread does when it is
+     * scheduled and its quantum expires. Prints the draws made per second,
+     * and each class's share of the wins next to its share of the tickets.
+     * The threads are never forked, so the scheduler is measured alone.
+     */
+    public static void benchmark() {
+	final int numThreads = 10000, numClasses = 10, numDraws = 2000000;
+
+	LotteryScheduler sched = new LotteryScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue ready = sched.newThreadQueue(false);
+	java.util.HashMap<KThread,Integer> classes =
+	    new java.util.HashMap<KThread,Integer>();
+	long totalTickets = 0;
+	for (int i=0; i<numThreads; i++) {
+	    KThread thread = new KThread().setName("bench" + i);
+	    int tickets = 1000 * (1 + i%numClasses);
+	    sched.setPriority(thread, tickets);
+	    ready.waitForAccess(thread);
+	    classes.put(thread, i%numClasses);
+	    totalTickets += tickets;
+	}
+
+	long[] wins = new long[numClasses];
+	long startTime = System.nanoTime();
+	for (int i=0; i<numDraws; i++) {
+	    KThread winner = ready.nextThread();
+	    wins[classes.get(winner)]++;
+	    ready.waitForAccess(winner);
+	}
+	long nanos = System.nanoTime() - startTime;
+
+	System.out.println("LotteryScheduler benchmark: " + numThreads
+			   + " threads, " + numDraws + " draws in "
+			   + nanos/1000000 + " ms ("
+			   + (long) (numDraws / (nanos / 1e9)) + " draws/s)");
+
+	double worst = 0;
+	for (int c=0; c<numClasses; c++) {
+	    double expected = (double) (numThreads/numClasses)
+		* 1000 * (1 + c) / totalTickets;
+	    double observed = (double) wins[c] / numDraws;
+	    worst = Math.max(worst, Math.abs(observed - expected) / expected);
+	    System.out.println("  " + 1000*(1 + c) + " tickets: expected "
+			       + Math.round(expected*1e4)/1e2 + "%, won "
+			       + Math.round(observed*1e4)/1e2 + "%");
+	}
+	System.out.println("  worst relative error "
+			   + Math.round(worst*1e4)/1e2 + "%");
+
+	while (ready.nextThread() != null)
+	    ;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses threads by lottery.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the holder loses what the waiting threads transferred before
+	    // the winner is taken off, and the new holder gets the rest
+	    setHolder(null);
+
+	    if (total == 0)
+		return null;
+
+	    LotteryState winner = slots[draw()];
+	    remove(winner);
+	    winner.waitingOn = null;
+	    winner.acquire(this);
+	    return winner.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int slot=0; slot<capacity; slot++) {
+		if (slots[slot] != null)
+		    System.out.print(slots[slot].thread + "("
+				     + weights[slot] + ") ");
+	    }
+	}
+
+	/**
+	 * Make a thread the holder of this queue, taking the tickets of the
+	 * waiting threads away from the previous holder and, if this queue
+	 * transfers priority, giving them to the new one.
+	 */
+	void setHolder(LotteryState state) {
+	    if (!transferPriority)
+		return;
+
+	    if (holder != null && total != 0)
+		holder.addDonation(-total);
+	    holder = state;
+	    if (holder != null && total != 0)
+		holder.addDonation(total);
+	}
+
+	/**
+	 * Give a thread a slot, weighted by its effective tickets.
+	 */
+	void add(LotteryState state) {
+	    if (numFree == 0)
+		grow();
+
+	    int slot = free[--numFree];
+	    slots[slot] = state;
+	    state.slot = slot;
+	    adjust(slot, state.getEffectiveTickets());
+	}
+
+	/**
+	 * Take a thread's slot, and its tickets, away.
+	 */
+	void remove(LotteryState state) {
+	    int slot = state.slot;
+	    adjust(slot, -weights[slot]);
+	    slots[slot] = null;
+	    free[numFree++] = slot;
+	    state.slot = -1;
+	}
+
+	/**
+	 * Change the tickets in a slot.
+	 */
+	void adjust(int slot, long delta) {
+	    weights[slot] += delta;
+	    total += delta;
+	    for (int i=slot+1; i<=capacity; i+=i&-i)
+		tree[i] += delta;
+	}
+
+	/**
+	 * Draw a ticket and return the slot holding it, walking down the tree
+	 * from the largest power of two, keeping each prefix whose tickets do
+	 * not reach the winning one.
+	 */
+	private int draw() {
+	    long ticket = (long) (Lib.random() * total);
+	    if (ticket >= total)
+		ticket = total - 1;
+
+	    int pos = 0;
+	    for (int step=capacity; step>0; step>>=1) {
+		if (pos+step <= capacity && tree[pos+step] <= ticket) {
+		    pos += step;
+		    ticket -= tree[pos];
+		}
+	    }
+	    return pos;
+	}
+
+	/**
+	 * Double the number of slots, rebuilding the tree over them in linear
+	 * time.
+	 */
+	private void grow() {
+	    int oldCapacity = capacity;
+	    capacity = (capacity == 0) ? initialCapacity : capacity*2;
+
+	    LotteryState[] oldSlots = slots;
+	    long[] oldWeights = weights;
+	    slots = new LotteryState[capacity];
+	    weights = new long[capacity];
+	    if (oldCapacity > 0) {
+		System.arraycopy(oldSlots, 0, slots, 0, oldCapacity);
+		System.arraycopy(oldWeights, 0, weights, 0, oldCapacity);
+	    }
+
+	    tree = new long[capacity+1];
+	    for (int i=1; i<=capacity; i++) {
+		tree[i] += weights[i-1];
+		int parent = i + (i&-i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+
+	    free = new int[capacity];
+	    numFree = 0;
+	    for (int slot=capacity-1; slot>=oldCapacity; slot--)
+		free[numFree++] = slot;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that last acquired this queue, if it transfers. */
+	LotteryState holder = null;
+	/** The tickets of all the waiting threads. */
+	long total = 0;
+
+	/** The waiting thread in each slot, and its tickets. */
+	private LotteryState[] slots = null;
+	private long[] weights = null;
+	/** The Fenwick tree over the slots' tickets, indexed from 1. */
+	private long[] tree = null;
+	private int capacity = 0;
+	/** The slots no thread is in. */
+	private int[] free = null;
+	private int numFree = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a lottery scheduler: its own
+     * tickets, the tickets transferred to it, and the queue it is waiting
+     * on, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the effective tickets of the associated thread.
+	 *
+	 * @return	its own tickets plus those transferred to it.
+	 */
+	public long getEffectiveTickets() {
+	    return tickets + donated;
+	}
+
+	/**
+	 * Set the tickets of the associated thread, passing the difference on
+	 * to the queue it is waiting on and the holders behind it.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+	    propagate(delta);
+	}
+
+	/**
+	 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+	 * the associated thread) is invoked on the specified lottery queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 *
+	 * @see	nachos.threads.ThreadQueue#waitForAccess
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	    if (waitQueue.transferPriority && waitQueue.holder != null)
+		waitQueue.holder.addDonation(getEffectiveTickets());
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 * @see	nachos.threads.ThreadQueue#nextThread
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    waitQueue.setHolder(this);
+	}
+
+	/**
+	 * Add to the tickets transferred to the associated thread.
+	 */
+	void addDonation(long delta) {
+	    donated += delta;
+	    propagate(delta);
+	}
+
+	/**
+	 * Carry a change in the associated thread's effective tickets into
+	 * the queue it waits on, and from there to that queue's holder, and
+	 * so on along the chain. A thread already visited ends the walk, so a
+	 * cycle of waiting threads, which can only be a deadlock, does not
+	 * add its tickets up forever.
+	 */
+	private void propagate(long delta) {
+	    if (delta == 0)
+		return;
+
+	    long walk = ++numWalks;
+	    LotteryState state = this;
+	    while (true) {
+		state.walk = walk;
+
+		LotteryQueue queue = state.waitingOn;
+		if (queue == null)
+		    return;
+		queue.adjust(state.slot, delta);
+
+		LotteryState holder =
+		    queue.transferPriority ? queue.holder : null;
+		if (holder == null)
+		    return;
+		holder.donated += delta;
+		if (holder.walk == walk)
+		    return;
+
+		state = holder;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The associated thread's own tickets. */
+	protected int tickets = priorityDefault;
+	/** The tickets transferred to the associated thread. */
+	protected long donated = 0;
+
+	/** The queue the associated thread is waiting on, if any. */
+	LotteryQueue waitingOn = null;
+	/** The associated thread's slot in that queue. */
+	int slot = -1;
+	/** The last walk along a chain of holders that visited this thread. */
+	private long walk = 0;
+    }
+
+    /** The number of slots in a queue's first tree. */
+    private static final int initialCapacity = 8;
+
+    /** The number of walks along chains of holders made so far. */
+    private long numWalks = 0;
 }
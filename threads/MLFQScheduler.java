@@ -0,0 +1,513 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Threads ready to run are kept on
+ * several levels, each a FIFO queue with its own quantum; the processor goes
+ * to the first thread on the highest level that has one. Threads start on
+ * the highest level. A thread that runs for its whole quantum on a level,
+ * counted across every time it is dispatched there, drops to the next level
+ * down, where the quantum is longer; a thread woken up after blocking, on a
+ * lock, a semaphore, the alarm or I/O, moves up a level. So threads that
+ * compute for a long time sink, and threads that mostly wait stay near the
+ * top and are dispatched soon after they wake. Every so often every thread is
+ * put back on the highest level, so that threads on the lower levels cannot
+ * starve, and a thread whose behaviour changes is judged afresh.
+ *
+ * <p>
+ * Time is charged from the alarm: on each timer interrupt the running thread
+ * is charged for the time since it was dispatched or last charged, and a
+ * thread is also charged when it leaves the processor. The thread is
+ * preempted at the first timer interrupt at which it has used up its
+ * quantum, or at which a thread on a higher level is waiting; otherwise it
+ * keeps running.
+ *
+ * <p>
+ * Only the processor is scheduled this way. Every other queue (locks,
+ * semaphores, condition variables) is an ordinary FIFO queue, and no
+ * priority is transferred.
+ *
+ * <p>
+ * The levels are configured by <tt>MLFQScheduler.quanta</tt>, a
+ * comma-separated list of quanta in ticks from the highest level down, or
+ * else by <tt>MLFQScheduler.levels</tt> and <tt>MLFQScheduler.quantum</tt>,
+ * the quantum of the highest level, which doubles on each level below (by
+ * default three levels starting at 500 ticks). Every thread is boosted every
+ * <tt>MLFQScheduler.boostInterval</tt> ticks (by default 20000); 0 disables
+ * boosting.
+ */
+public class MLFQScheduler extends RoundRobinScheduler {
+    /**
+     * Allocate a new MLFQ scheduler, reading its levels from the
+     * configuration.
+     */
+    public MLFQScheduler() {
+	this(configuredQuanta(),
+	     Config.getInteger("MLFQScheduler.boostInterval", 20000));
+    }
+
+    /**
+     * Allocate a new MLFQ scheduler with the specified levels.
+     *
+     * @param	quanta		the quantum of each level in ticks, from the
+     *				highest level down.
+     * @param	boostInterval	the ticks between boosts, or 0 to never
+     *				boost.
+     */
+    public MLFQScheduler(int[] quanta, long boostInterval) {
+	Lib.assertTrue(quanta.length > 0 && boostInterval >= 0);
+	for (int i=0; i<quanta.length; i++)
+	    Lib.assertTrue(quanta[i] > 0);
+
+	this.quanta = quanta;
+	this.boostInterval = boostInterval;
+    }
+
+    /**
+     * Allocate the multi-level queue of threads ready to run.
+     *
+     * @return	a new multi-level queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new FeedbackQueue();
+	return readyQueue;
+    }
+
+    /**
+     * Boost every thread if it is time to, charge the running thread for
+     * the time since it was last charged, and preempt it if it has used up
+     * its quantum or a thread on a higher level is ready.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (readyQueue == null)
+	    return true;
+
+	long now = Machine.timer().getTime();
+	if (boostInterval > 0 && now - lastBoost >= boostInterval) {
+	    lastBoost = now;
+	    boost();
+	}
+
+	KThread running = readyQueue.running;
+	if (running == null || running != KThread.currentThread())
+	    return true;
+
+	if (readyQueue.charge(now))
+	    return true;
+
+	return readyQueue.getTopLevel() < getThreadState(running).getLevel();
+    }
+
+    /**
+     * Return the level a thread is on, 0 being the highest.
+     *
+     * @param	thread	the thread.
+     * @return	the thread's level.
+     */
+    public int getLevel(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getLevel();
+    }
+
+    /**
+     * Put every thread back on the highest level: those ready to run at
+     * once, and the rest as soon as they are next scheduled.
+     */
+    public void boost() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	numBoosts++;
+	if (readyQueue != null)
+	    readyQueue.boost();
+    }
+
+    /**
+     * Print the scheduler's statistics.
+     */
+    public void print() {
+	System.out.println("MLFQ: levels " + quanta.length
+			   + ", demotions " + numDemotions
+			   + ", promotions " + numPromotions
+			   + ", boosts " + numBoosts);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private static int[] configuredQuanta() {
+	String list = Config.getString("MLFQScheduler.quanta", null);
+	if (list != null) {
+	    String[] fields = list.split(",");
+	    int[] quanta = new int[fields.length];
+	    for (int i=0; i<fields.length; i++) {
+		try {
+		    quanta[i] = Integer.parseInt(fields[i].trim());
+		}
+		catch (NumberFormatException e) {
+		    Lib.assertNotReached("MLFQScheduler.quanta should be a "
+					 + "list of integers");
+		}
+	    }
+	    return quanta;
+	}
+
+	int levels = Config.getInteger("MLFQScheduler.levels", 3);
+	int quantum = Config.getInteger("MLFQScheduler.quantum", 500);
+	int[] quanta = new int[levels];
+	for (int i=0; i<levels; i++)
+	    quanta[i] = quantum << i;
+	return quanta;
+    }
+
+    /**
+     * Test if this module is working: dispatch by level, demotion when a
+     * quantum is used up, promotion on waking, and boosting. Uses a private
+     * scheduler and threads that are never forked, so it works whatever
+     * scheduler the kernel runs.
+     */
+    public static void selfTest() {
+	System.out.println("MLFQScheduler.java tests:");
+
+	MLFQScheduler sched = new MLFQScheduler(new int[] { 100, 200, 400 },
+						0);
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] t = new KThread[3];
+	for (int i=0; i<t.length; i++)
+	    t[i] = new KThread().setName("f" + i);
+
+	FeedbackQueue ready = (FeedbackQueue) sched.newReadyQueue();
+	ready.acquire(t[0]);
+
+	// t0 runs out its quantum on each level in turn, and stays on the
+	// lowest once it gets there
+	ThreadState s0 = sched.getThreadState(t[0]);
+	Lib.assertTrue(!sched.charge(s0, 60) && s0.getLevel() == 0);
+	Lib.assertTrue(sched.charge(s0, 40) && s0.getLevel() == 1);
+	Lib.assertTrue(sched.charge(s0, 200) && s0.getLevel() == 2);
+	Lib.assertTrue(sched.charge(s0, 400) && s0.getLevel() == 2);
+
+	// threads new to the queue start on the highest level, and are
+	// dispatched before t0, first come first served
+	ready.waitForAccess(t[1]);
+	ready.waitForAccess(t[2]);
+	ready.running = null;
+	ready.waitForAccess(t[0]);
+	Lib.assertTrue(s0.getLevel() == 1);
+	Lib.assertTrue(ready.getTopLevel() == 0);
+	Lib.assertTrue(ready.nextThread() == t[1]);
+	Lib.assertTrue(ready.nextThread() == t[2]);
+	Lib.assertTrue(ready.nextThread() == t[0]);
+	Lib.assertTrue(ready.nextThread() == null);
+
+	// a boost lifts the threads waiting at once, and the others when they
+	// are next scheduled
+	ThreadState s1 = sched.getThreadState(t[1]);
+	sched.charge(s1, 100);
+	sched.charge(s1, 200);
+	sched.charge(sched.getThreadState(t[2]), 100);
+	ready.waitForAccess(t[1]);
+	Lib.assertTrue(sched.getLevel(t[1]) == 1 && ready.getTopLevel() == 1);
+	sched.boost();
+	Lib.assertTrue(sched.getLevel(t[1]) == 0 && sched.getLevel(t[2]) == 0
+		       && ready.getTopLevel() == 0);
+	Lib.assertTrue(ready.nextThread() == t[1]);
+
+	Machine.interrupt().restore(intStatus);
+	System.out.println("MLFQScheduler: ok");
+    }
+
+    /**
+     * Measure interactive response time and compute throughput under the
+     * kernel's scheduler, for comparison between schedulers. Forks three
+     * threads that compute without ever blocking, and two that repeatedly
+     * sleep on the alarm and then compute briefly, as a thread serving a
+     * terminal does. Response time is the time from when an interactive
+     * thread asked to be woken to when it runs again, so it includes up to a
+     * timer period spent waiting for the alarm, whatever the scheduler;
+     * throughput is the work the computing threads get done per 1000 ticks.
+     */
+    public static void benchmark() {
+	final int numHogs = 3, hogWork = 5000;
+	final int numInteractive = 2, rounds = 20, sleepTicks = 1000;
+	final int burstWork = 10;
+
+	final long[] response = new long[numInteractive*rounds];
+	final long[] done = new long[1];
+
+	long startTime = Machine.timer().getTime();
+	KThread[] threads = new KThread[numHogs+numInteractive];
+	for (int i=0; i<numHogs; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<hogWork; j++) {
+			    work(1);
+			    done[0]++;
+			}
+		    }
+		}).setName("hog " + i);
+	}
+	for (int i=0; i<numInteractive; i++) {
+	    final int which = i;
+	    threads[numHogs+i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<rounds; j++) {
+			    long wakeTime = Machine.timer().getTime()
+				+ sleepTicks;
+			    ThreadedKernel.alarm.waitUntil(sleepTicks);
+			    response[which*rounds+j] =
+				Machine.timer().getTime() - wakeTime;
+			    work(burstWork);
+			}
+		    }
+		}).setName("interactive " + i);
+	}
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+	long elapsed = Machine.timer().getTime() - startTime;
+
+	long sum = 0, max = 0;
+	for (int i=0; i<response.length; i++) {
+	    sum += response[i];
+	    max = Math.max(max, response[i]);
+	}
+	String name = ThreadedKernel.scheduler.getClass().getName();
+	System.out.println("MLFQ benchmark (" + name + "): response mean "
+			   + sum/response.length + " max " + max
+			   + " ticks over " + response.length + " wakeups");
+	System.out.println("MLFQ benchmark (" + name + "): " + done[0]
+			   + " units of work in " + elapsed + " ticks ("
+			   + Math.round(done[0] * 1000.0 / elapsed)
+			   + " per 1000 ticks)");
+	if (ThreadedKernel.scheduler instanceof MLFQScheduler) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    ((MLFQScheduler) ThreadedKernel.scheduler).print();
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+
+    /**
+     * Spend simulated time computing, a kernel tick per unit of work.
+     */
+    private static void work(int units) {
+	for (int i=0; i<units; i++) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    Machine.interrupt().restore(intStatus);
+	}
+    }
+
+    /**
+     * Charge a thread for time it has run, and move it down a level if it
+     * has used up its quantum on its level.
+     *
+     * @return	<tt>true</tt> if the thread has used up its quantum.
+     */
+    private boolean charge(ThreadState state, long ticks) {
+	state.refresh();
+	state.used += ticks;
+	if (state.used < quanta[state.level])
+	    return false;
+
+	state.used = 0;
+	if (state.level < quanta.length-1) {
+	    state.level++;
+	    numDemotions++;
+	}
+	return true;
+    }
+
+    /**
+     * Move a thread that was blocked up a level.
+     */
+    private void wake(ThreadState state) {
+	state.refresh();
+	if (state.level > 0) {
+	    state.level--;
+	    state.used = 0;
+	    numPromotions++;
+	}
+    }
+
+    /**
+     * The queue of threads ready to run, one FIFO list per level.
+     */
+    protected class FeedbackQueue extends ThreadQueue {
+	FeedbackQueue() {
+	    levels = new ArrayList<ArrayDeque<KThread>>(quanta.length);
+	    for (int i=0; i<quanta.length; i++)
+		levels.add(new ArrayDeque<KThread>());
+	}
+
+	/**
+	 * Add a thread to the list for its level. A thread other than the
+	 * one this queue last dispatched was blocked, or is new, and moves up
+	 * a level first.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (thread != running)
+		wake(state);
+	    else
+		state.refresh();
+	    levels.get(state.level).add(thread);
+	}
+
+	/**
+	 * Charge the thread leaving the processor, and dispatch the first
+	 * thread on the highest level that has one.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long now = Machine.timer().getTime();
+	    if (running != null)
+		charge(now);
+
+	    running = null;
+	    int level = getTopLevel();
+	    if (level == levels.size())
+		return null;
+
+	    running = levels.get(level).poll();
+	    getThreadState(running).sliceStart = now;
+	    return running;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(getTopLevel() == levels.size());
+
+	    running = thread;
+	    getThreadState(thread).sliceStart = Machine.timer().getTime();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<levels.size(); level++) {
+		for (Iterator<KThread> i=levels.get(level).iterator(); i.hasNext(); )
+		    System.out.print(i.next() + "(" + level + ") ");
+	    }
+	}
+
+	/**
+	 * Return the highest level with a thread ready to run.
+	 *
+	 * @return	the level, or the number of levels if no thread is
+	 *		ready.
+	 */
+	int getTopLevel() {
+	    int level = 0;
+	    while (level < levels.size() && levels.get(level).isEmpty())
+		level++;
+	    return level;
+	}
+
+	/**
+	 * Charge the running thread for the time since it was dispatched or
+	 * last charged.
+	 *
+	 * @return	<tt>true</tt> if it has used up its quantum.
+	 */
+	boolean charge(long now) {
+	    ThreadState state = getThreadState(running);
+	    long ticks = now - state.sliceStart;
+	    state.sliceStart = now;
+	    return MLFQScheduler.this.charge(state, ticks);
+	}
+
+	/**
+	 * Move every waiting thread to the highest level, after those already
+	 * there, keeping the order of the levels.
+	 */
+	void boost() {
+	    for (int level=1; level<levels.size(); level++) {
+		while (!levels.get(level).isEmpty()) {
+		    KThread thread = levels.get(level).poll();
+		    getThreadState(thread).refresh();
+		    levels.get(0).add(thread);
+		}
+	    }
+	}
+
+	/** The thread this queue last dispatched, if it is still running. */
+	KThread running = null;
+
+	private ArrayList<ArrayDeque<KThread>> levels;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of the
+     * level's quantum it has used.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Return the level of the associated thread, catching up with any
+	 * boost since it was last scheduled.
+	 *
+	 * @return	the thread's level.
+	 */
+	public int getLevel() {
+	    refresh();
+	    return level;
+	}
+
+	/**
+	 * Put the associated thread on the highest level if there has been a
+	 * boost since it was last scheduled.
+	 */
+	void refresh() {
+	    if (boosts != numBoosts) {
+		boosts = numBoosts;
+		level = 0;
+		used = 0;
+	    }
+	}
+
+	/** The level of the associated thread, 0 being the highest. */
+	int level = 0;
+	/** The ticks the associated thread has run on its level. */
+	long used = 0;
+	/** When the associated thread was dispatched or last charged. */
+	long sliceStart = 0;
+	/** The number of boosts this state has caught up with. */
+	int boosts = numBoosts;
+    }
+
+    private int[] quanta;
+    private long boostInterval;
+    private long lastBoost = 0;
+
+    /** The queue of threads ready to run, once the kernel has made it. */
+    private FeedbackQueue readyQueue = null;
+
+    private int numBoosts = 0;
+    private int numDemotions = 0;
+    private int numPromotions = 0;
+}
@@ -25,6 +25,27 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps one FIFO list of waiting threads per priority level,
+ * linked through the threads' own states, and a bitmask of the levels that
+ * are not empty, so picking the next thread (the head of the list named by
+ * the highest bit), removing it, and adding a thread that starts waiting (at
+ * the tail of its list) take constant time, however many threads are
+ * waiting. Each thread caches its effective priority. A thread holding
+ * queues that transfer priority keeps a count, per level, of the queues whose
+ * highest waiter is at that level, so its effective priority is the higher of
+ * its own and the highest level counted.
+ *
+ * <p>
+ * Two operations are not constant time. A waiter whose effective priority
+ * changes is moved to its new list behind the threads there that began
+ * waiting before it, to keep each level in arrival order; this walks back
+ * past every later arrival, so it can take time linear in the length of that
+ * list. And a change in effective priority is passed along the chain of
+ * holders it can affect, one queue at a time, so a donation costs time
+ * proportional to the depth of the chain, though the walk stops as soon as a
+ * queue's highest waiter stays the same.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -72,8 +93,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority+1);
 
@@ -87,8 +110,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority-1);
 
@@ -122,6 +147,77 @@ public class PriorityScheduler extends Scheduler {
 	return (ThreadState) thread.schedulingState;
     }
 
+    /**
+     * Test if this module is working: ordering within and between priorities,
+     * donation along a chain of locks, and undoing it when priorities drop
+     * and locks change hands. Uses a private scheduler and threads that are
+     * never forked, so it works whatever scheduler the kernel runs.
+     */
+    public static void selfTest() {
+	System.out.println("PriorityScheduler.java tests:");
+
+	PriorityScheduler sched = new PriorityScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] t = new KThread[4];
+	for (int i=0; i<t.length; i++)
+	    t[i] = new KThread().setName("p" + i);
+
+	// highest priority first, first come first served within a priority
+	ThreadQueue ready = sched.newThreadQueue(false);
+	int[] priorities = { 1, 3, 2, 3 };
+	for (int i=0; i<t.length; i++) {
+	    sched.setPriority(t[i], priorities[i]);
+	    ready.waitForAccess(t[i]);
+	}
+	Lib.assertTrue(ready.nextThread() == t[1]);
+	Lib.assertTrue(ready.nextThread() == t[3]);
+	Lib.assertTrue(ready.nextThread() == t[2]);
+	Lib.assertTrue(ready.nextThread() == t[0]);
+	Lib.assertTrue(ready.nextThread() == null);
+
+	// t0 holds lock1; t1 holds lock2 and waits for lock1; t2 waits for
+	// lock2, so t2's priority reaches t0 through t1
+	ThreadQueue lock1 = sched.newThreadQueue(true);
+	ThreadQueue lock2 = sched.newThreadQueue(true);
+	sched.setPriority(t[0], 0);
+	sched.setPriority(t[1], 1);
+	sched.setPriority(t[2], 2);
+	lock1.acquire(t[0]);
+	lock2.acquire(t[1]);
+	lock1.waitForAccess(t[1]);
+	lock2.waitForAccess(t[2]);
+	Lib.assertTrue(sched.getEffectivePriority(t[0]) == 2);
+
+	sched.setPriority(t[2], 7);
+	Lib.assertTrue(sched.getEffectivePriority(t[1]) == 7
+		       && sched.getEffectivePriority(t[0]) == 7);
+	sched.setPriority(t[2], 0);
+	Lib.assertTrue(sched.getEffectivePriority(t[1]) == 1
+		       && sched.getEffectivePriority(t[0]) == 1);
+
+	// t0 releases lock1 to t1, and gets nothing donated any more
+	sched.setPriority(t[2], 5);
+	Lib.assertTrue(lock1.nextThread() == t[1]);
+	Lib.assertTrue(sched.getEffectivePriority(t[0]) == 0);
+	Lib.assertTrue(sched.getEffectivePriority(t[1]) == 5);
+	Lib.assertTrue(lock2.nextThread() == t[2]);
+	Lib.assertTrue(sched.getEffectivePriority(t[1]) == 1);
+
+	Machine.interrupt().restore(intStatus);
+	System.out.println("PriorityScheduler: ok");
+    }
+
+    /**
+     * Return the highest level set in a bitmask of priority levels.
+     *
+     * @param	mask	the bitmask.
+     * @return	the highest level, or -1 if <i>mask</i> is 0.
+     */
+    protected static int highestLevel(int mask) {
+	return 31 - Integer.numberOfLeadingZeros(mask);
+    }
+
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
      */
@@ -142,8 +238,19 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    // the holder loses what the waiting threads donated before the next
+	    // one is taken off, and the new holder gets what the rest donate
+	    setHolder(null);
+
+	    ThreadState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    unlink(next, next.effectivePriority);
+	    next.waitingOn = null;
+	    next.acquire(this);
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +261,128 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    int level = getTopPriority();
+	    return (level == -1) ? null : heads[level];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+		for (ThreadState s=heads[level]; s!=null; s=s.next)
+		    System.out.print(s.thread + "(" + level + ") ");
+	    }
+	}
+
+	/**
+	 * Return the highest effective priority of the threads waiting on
+	 * this queue.
+	 *
+	 * @return	the highest priority waiting, or -1 if no thread is
+	 *		waiting.
+	 */
+	protected int getTopPriority() {
+	    return highestLevel(levels);
+	}
+
+	/**
+	 * Make a thread the holder of this queue, taking the priority of the
+	 * waiting threads away from the previous holder and, if this queue
+	 * transfers priority, giving it to the new one.
+	 */
+	void setHolder(ThreadState state) {
+	    if (!transferPriority)
+		return;
+
+	    int top = getTopPriority();
+	    if (holder != null && top != -1) {
+		holder.removeDonation(top);
+		holder.updateEffectivePriority();
+	    }
+	    holder = state;
+	    if (holder != null && top != -1) {
+		holder.addDonation(top);
+		holder.updateEffectivePriority();
+	    }
+	}
+
+	/**
+	 * Add a waiting thread to the list for its effective priority, in
+	 * order of arrival, and pass any change in the highest priority
+	 * waiting on to the holder.
+	 */
+	void add(ThreadState state) {
+	    int oldTop = getTopPriority();
+	    link(state);
+	    topChanged(oldTop);
+	}
+
+	/**
+	 * Move a waiting thread whose effective priority has changed to the
+	 * list for its new priority, and pass any change in the highest
+	 * priority waiting on to the holder.
+	 *
+	 * @return	the holder, if its effective priority may have changed
+	 *		as a result, or <tt>null</tt>.
+	 */
+	ThreadState reposition(ThreadState state, int oldPriority) {
+	    int oldTop = getTopPriority();
+	    unlink(state, oldPriority);
+	    link(state);
+	    return topChanged(oldTop) ? holder : null;
+	}
+
+	private boolean topChanged(int oldTop) {
+	    int top = getTopPriority();
+	    if (!transferPriority || holder == null || top == oldTop)
+		return false;
+
+	    if (oldTop != -1)
+		holder.removeDonation(oldTop);
+	    holder.addDonation(top);
+	    return true;
+	}
+
+	/**
+	 * Link a thread into the list for its effective priority. A thread
+	 * normally goes at the tail; one that moved from another list goes
+	 * after the threads that arrived before it, so threads of the same
+	 * priority are still served in the order they began waiting. Finding
+	 * that place walks back from the tail past every later arrival.
+	 */
+	private void link(ThreadState state) {
+	    int level = state.effectivePriority;
+	    ThreadState after = tails[level];
+	    while (after != null && after.arrival > state.arrival)
+		after = after.prev;
+
+	    state.prev = after;
+	    state.next = (after == null) ? heads[level] : after.next;
+	    if (state.prev == null)
+		heads[level] = state;
+	    else
+		state.prev.next = state;
+	    if (state.next == null)
+		tails[level] = state;
+	    else
+		state.next.prev = state;
+
+	    levels |= 1 << level;
+	}
+
+	private void unlink(ThreadState state, int level) {
+	    if (state.prev == null)
+		heads[level] = state.next;
+	    else
+		state.prev.next = state.next;
+	    if (state.next == null)
+		tails[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+	    state.prev = state.next = null;
+
+	    if (heads[level] == null)
+		levels &= ~(1 << level);
 	}
 
 	/**
@@ -168,6 +390,14 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that last acquired this queue, if it transfers. */
+	ThreadState holder = null;
+	/** The first and last waiting thread at each priority. */
+	private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+	private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+	/** A bit for each priority with at least one waiting thread. */
+	private int levels = 0;
     }
 
     /**
@@ -200,13 +430,13 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * Return the effective priority of the associated thread.
+	 * Return the effective priority of the associated thread: the higher
+	 * of its own priority and the highest priority donated to it.
 	 *
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +450,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +466,13 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    arrival = numArrivals++;
+	    waitQueue.add(this);
+	    if (waitQueue.transferPriority && waitQueue.holder != null)
+		waitQueue.holder.updateEffectivePriority();
 	}
 
 	/**
@@ -250,12 +486,66 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    waitQueue.setHolder(this);
 	}	
 
+	/**
+	 * Recompute the effective priority of the associated thread from its
+	 * own priority and the priority donated to it. If it changes while
+	 * the thread is waiting, the thread moves within its queue, and the
+	 * change is carried on to that queue's holder, and so on along the
+	 * chain, for as long as each holder's effective priority changes.
+	 */
+	protected void updateEffectivePriority() {
+	    ThreadState state = this;
+	    while (state != null) {
+		int effective = Math.max(state.priority,
+					 highestLevel(state.donations));
+		if (effective == state.effectivePriority)
+		    return;
+
+		int old = state.effectivePriority;
+		state.effectivePriority = effective;
+		if (state.waitingOn == null)
+		    return;
+
+		state = state.waitingOn.reposition(state, old);
+	    }
+	}
+
+	/** Count a held queue whose highest waiter has priority <i>level</i>. */
+	void addDonation(int level) {
+	    if (donationCounts[level]++ == 0)
+		donations |= 1 << level;
+	}
+
+	void removeDonation(int level) {
+	    if (--donationCounts[level] == 0)
+		donations &= ~(1 << level);
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority = -1;
+
+	/** The queue the associated thread is waiting on, if any. */
+	PriorityQueue waitingOn = null;
+	/** The neighbours of the associated thread in its queue's list. */
+	ThreadState prev = null, next = null;
+	/** When the associated thread began waiting on its queue. */
+	long arrival;
+
+	/**
+	 * For each priority, the number of held queues whose highest waiter
+	 * has that priority, and a bit for each priority counted at all.
+	 */
+	private int[] donationCounts = new int[priorityMaximum+1];
+	private int donations = 0;
     }
+
+    /** The number of times a thread has begun waiting on any queue. */
+    private long numArrivals = 0;
 }
@@ -52,6 +52,29 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads ready to run. The kernel calls this once,
+     * when threading starts. A scheduler that treats the processor unlike
+     * other resources overrides this; by default the ready queue is an
+     * ordinary queue that transfers no priority.
+     *
+     * @return	a new thread queue for the processor.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled,
+     * to decide whether the current thread should be preempted. By default
+     * it always is, giving each thread a time slice of one timer period.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	return true;
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
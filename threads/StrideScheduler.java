@@ -0,0 +1,616 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A stride scheduler, which gives each thread a deterministic share of
+ * every resource in proportion to its tickets, as lottery scheduling does
+ * on average. Each thread has a stride, inversely proportional to its
+ * tickets, and a pass; the thread with the least pass goes next, and its
+ * pass then advances by its stride for each allocation it receives. A
+ * thread with twice the tickets advances half as fast, and so is chosen
+ * twice as often. Over any sequence of allocations, the error in each
+ * thread's share stays within a small number of allocations, whereas a
+ * lottery's error grows with the square root of their number.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a binary min-heap on pass, ties
+ * going to the thread that has waited longest, so a thread is added,
+ * repositioned or chosen in time logarithmic in the number waiting. Each
+ * queue also has a global pass, the greatest pass it has chosen so far. A
+ * thread that leaves a queue remembers how far its pass was ahead of the
+ * queue's global pass, and when it rejoins, after blocking or sleeping, its
+ * pass is set the same distance ahead of the global pass as it is then. A
+ * thread therefore neither gains a claim on the time that passed while it
+ * was away, nor loses its place.
+ *
+ * <p>
+ * The processor is allocated by time: a thread's pass advances by its
+ * stride for each timer period it runs, in proportion, when it leaves the
+ * processor. Every other queue counts one allocation each time it is
+ * acquired.
+ *
+ * <p>
+ * Queues that transfer priority give the waiting threads' tickets to the
+ * holder, as a lottery scheduler does; tickets add. When a thread's
+ * effective tickets change, its stride changes, and the distance between
+ * its pass and its queue's global pass is scaled by the same factor, so it
+ * keeps the same fraction of its current allocation left to wait.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the queue of threads ready to run, which allocates the
+     * processor by time.
+     *
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new StrideQueue(false, true);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getStrideState(thread).tickets;
+    }
+
+    /**
+     * Return the effective tickets of a thread, or
+     * <tt>Integer.MAX_VALUE</tt> if it holds more than that.
+     */
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getStrideState(thread).getEffectiveTickets(),
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getStrideState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 100;
+    /**
+     * The fewest tickets a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The most tickets a thread can have of its own.
+     */
+    public static final int priorityMaximum = 1 << 20;
+    /**
+     * The stride of a thread with one ticket.
+     */
+    public static final long stride1 = 1L << 32;
+
+    /**
+     * Return the stride state of the specified thread.
+     *
+     * @param	thread	the thread whose stride state to return.
+     * @return	the stride state of the specified thread.
+     */
+    protected StrideState getStrideState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideState(thread);
+
+	return (StrideState) thread.schedulingState;
+    }
+
+    /**
+     * Test if this module is working: the share of allocations each thread
+     * gets, and the bound on its error; a thread leaving and rejoining a
+     * queue; and transfer along a chain of locks. Uses a private scheduler
+     * and threads that are never forked, so it works whatever scheduler the
+     * kernel runs.
+     */
+    public static void selfTest() {
+	System.out.println("StrideScheduler.java tests:");
+
+	StrideScheduler sched = new StrideScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread[] t = new KThread[3];
+	for (int i=0; i<t.length; i++)
+	    t[i] = new KThread().setName("s" + i);
+
+	// every thread's allocations stay within one of its share, at every
+	// point
+	StrideQueue queue = (StrideQueue) sched.newThreadQueue(false);
+	int[] tickets = { 300, 200, 100 };
+	int[] allocations = new int[t.length];
+	for (int i=0; i<t.length; i++) {
+	    sched.setPriority(t[i], tickets[i]);
+	    queue.waitForAccess(t[i]);
+	}
+	for (int n=1; n<=600; n++) {
+	    KThread next = queue.nextThread();
+	    allocations[next.getName().charAt(1) - '0']++;
+	    queue.waitForAccess(next);
+	    for (int i=0; i<t.length; i++)
+		Lib.assertTrue(Math.abs(allocations[i] - n*tickets[i]/600.0)
+			       <= 1);
+	}
+	Lib.assertTrue(allocations[0] == 300 && allocations[1] == 200
+		       && allocations[2] == 100);
+
+	// a thread that leaves and rejoins comes back just as far ahead of
+	// the global pass as it left, however long it was away
+	KThread away;
+	while ((away = queue.nextThread()) != t[2])
+	    queue.waitForAccess(away);
+	StrideState s2 = sched.getStrideState(t[2]);
+	long remain = s2.pass - queue.globalPass;
+	for (int i=0; i<100; i++)
+	    queue.waitForAccess(queue.nextThread());
+	queue.waitForAccess(t[2]);
+	Lib.assertTrue(s2.pass - queue.globalPass == remain);
+
+	// doubling a waiting thread's tickets halves its distance ahead
+	long ahead = s2.pass - queue.globalPass;
+	sched.setPriority(t[2], 200);
+	Lib.assertTrue(Math.abs(2*(s2.pass - queue.globalPass) - ahead) <= 1);
+	for (int i=0; i<t.length; i++)
+	    Lib.assertTrue(queue.nextThread() != null);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// t0 holds lock1; t1 holds lock2 and waits for lock1; t2 waits for
+	// lock2, so both t1's and t2's tickets reach t0
+	for (int i=0; i<t.length; i++)
+	    sched.setPriority(t[i], i+1);
+	ThreadQueue lock1 = sched.newThreadQueue(true);
+	ThreadQueue lock2 = sched.newThreadQueue(true);
+	lock1.acquire(t[0]);
+	lock2.acquire(t[1]);
+	lock1.waitForAccess(t[1]);
+	lock2.waitForAccess(t[2]);
+	Lib.assertTrue(sched.getEffectivePriority(t[0]) == 6);
+	sched.setPriority(t[2], 10);
+	Lib.assertTrue(sched.getEffectivePriority(t[1]) == 12
+		       && sched.getEffectivePriority(t[0]) == 13);
+
+	Lib.assertTrue(lock1.nextThread() == t[1]);
+	Lib.assertTrue(sched.getEffectivePriority(t[0]) == 1
+		       && sched.getEffectivePriority(t[1]) == 12);
+	Lib.assertTrue(lock2.nextThread() == t[2]);
+	Lib.assertTrue(sched.getEffectivePriority(t[1]) == 2);
+
+	Machine.interrupt().restore(intStatus);
+	System.out.println("StrideScheduler: ok");
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses the thread with the least pass.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority, boolean processor) {
+	    this.transferPriority = transferPriority;
+	    this.processor = processor;
+	}
+
+	/**
+	 * Add a thread to the heap. A thread rejoining puts its pass as far
+	 * ahead of the global pass as it was when it left; the running
+	 * thread, yielding the processor, is charged for its time and keeps
+	 * its pass.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    StrideState state = getStrideState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (processor && thread == running) {
+		charge(Machine.timer().getTime());
+		running = null;
+	    }
+	    else {
+		state.pass = globalPass + state.remain;
+	    }
+
+	    state.waitingOn = this;
+	    state.arrival = numArrivals++;
+	    state.weight = state.getEffectiveTickets();
+	    total += state.weight;
+	    add(state);
+
+	    if (transferPriority && holder != null)
+		holder.addDonation(state.weight);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    StrideState state = getStrideState(thread);
+	    if (processor) {
+		running = thread;
+		state.sliceStart = Machine.timer().getTime();
+	    }
+	    setHolder(state);
+	}
+
+	/**
+	 * Choose the thread with the least pass. The processor charges the
+	 * thread leaving it, if it was not already charged when it yielded;
+	 * another queue charges the chosen thread one stride.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the holder loses what the waiting threads transferred before
+	    // the next one is taken off, and the new holder gets the rest
+	    setHolder(null);
+
+	    long now = Machine.timer().getTime();
+	    if (processor && running != null) {
+		charge(now);
+		StrideState left = getStrideState(running);
+		left.remain = left.pass - globalPass;
+		running = null;
+	    }
+
+	    if (size == 0)
+		return null;
+
+	    StrideState next = heap[0];
+	    remove(next);
+	    globalPass = Math.max(globalPass, next.pass);
+	    next.waitingOn = null;
+	    total -= next.weight;
+
+	    if (processor) {
+		running = next.thread;
+		next.sliceStart = now;
+	    }
+	    else {
+		next.pass += next.getStride();
+		next.remain = next.pass - globalPass;
+	    }
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + "(" + heap[i].pass + ") ");
+	}
+
+	/**
+	 * Charge the running thread for the time since it was dispatched or
+	 * last charged, one stride per timer period.
+	 */
+	void charge(long now) {
+	    StrideState state = getStrideState(running);
+	    state.pass += state.getStride() * (now - state.sliceStart)
+		/ Stats.TimerTicks;
+	    state.sliceStart = now;
+	}
+
+	/**
+	 * Make a thread the holder of this queue, taking the tickets of the
+	 * waiting threads away from the previous holder and, if this queue
+	 * transfers priority, giving them to the new one.
+	 */
+	void setHolder(StrideState state) {
+	    if (!transferPriority)
+		return;
+
+	    if (holder != null && total != 0)
+		holder.addDonation(-total);
+	    holder = state;
+	    if (holder != null && total != 0)
+		holder.addDonation(total);
+	}
+
+	private void add(StrideState state) {
+	    if (size == heap.length) {
+		StrideState[] bigger = new StrideState[heap.length*2];
+		System.arraycopy(heap, 0, bigger, 0, size);
+		heap = bigger;
+	    }
+	    heap[size] = state;
+	    state.heapIndex = size++;
+	    siftUp(state.heapIndex);
+	}
+
+	private void remove(StrideState state) {
+	    int index = state.heapIndex;
+	    StrideState last = heap[--size];
+	    heap[size] = null;
+	    state.heapIndex = -1;
+	    if (last != state) {
+		heap[index] = last;
+		last.heapIndex = index;
+		reposition(last);
+	    }
+	}
+
+	/**
+	 * Restore the heap order around a waiting thread whose pass has
+	 * changed.
+	 */
+	void reposition(StrideState state) {
+	    siftUp(state.heapIndex);
+	    siftDown(state.heapIndex);
+	}
+
+	private void siftUp(int index) {
+	    StrideState state = heap[index];
+	    while (index > 0) {
+		int parent = (index-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+		place(heap[parent], index);
+		index = parent;
+	    }
+	    place(state, index);
+	}
+
+	private void siftDown(int index) {
+	    StrideState state = heap[index];
+	    while (true) {
+		int child = 2*index + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+		place(heap[child], index);
+		index = child;
+	    }
+	    place(state, index);
+	}
+
+	private void place(StrideState state, int index) {
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	private boolean before(StrideState a, StrideState b) {
+	    if (a.pass != b.pass)
+		return a.pass < b.pass;
+	    return a.arrival < b.arrival;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/** <tt>true</tt> if this queue allocates the processor, by time. */
+	private boolean processor;
+
+	/** The thread that last acquired this queue, if it transfers. */
+	StrideState holder = null;
+	/** The thread the processor queue last dispatched, if running. */
+	KThread running = null;
+	/** The greatest pass this queue has chosen. */
+	long globalPass = 0;
+	/** The tickets of all the waiting threads. */
+	long total = 0;
+
+	private StrideState[] heap = new StrideState[8];
+	private int size = 0;
+	private long numArrivals = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a stride scheduler.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class StrideState {
+	/**
+	 * Allocate a new <tt>StrideState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideState(KThread thread) {
+	    this.thread = thread;
+	    remain = getStride();
+	}
+
+	/**
+	 * Return the effective tickets of the associated thread.
+	 *
+	 * @return	its own tickets plus those transferred to it.
+	 */
+	public long getEffectiveTickets() {
+	    return tickets + donated;
+	}
+
+	/**
+	 * Return the stride of the associated thread.
+	 *
+	 * @return	<tt>stride1</tt> divided by its effective tickets.
+	 */
+	public long getStride() {
+	    return Math.max(1, stride1 / getEffectiveTickets());
+	}
+
+	/**
+	 * Set the tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long oldStride = getStride();
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+	    propagate(delta, oldStride);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 * @see	nachos.threads.ThreadQueue#nextThread
+	 */
+	public void acquire(StrideQueue waitQueue) {
+	    waitQueue.setHolder(this);
+	}
+
+	/**
+	 * Add to the tickets transferred to the associated thread.
+	 */
+	void addDonation(long delta) {
+	    long oldStride = getStride();
+	    donated += delta;
+	    propagate(delta, oldStride);
+	}
+
+	/**
+	 * Carry a change in the associated thread's effective tickets along
+	 * the chain of queues and holders it waits behind, rescaling each
+	 * thread's distance ahead of its queue's global pass to its new
+	 * stride. A thread already visited ends the walk, so a cycle of
+	 * waiting threads, which can only be a deadlock, does not add its
+	 * tickets up forever.
+	 */
+	private void propagate(long delta, long oldStride) {
+	    if (delta == 0)
+		return;
+
+	    long walk = ++numWalks;
+	    StrideState state = this;
+	    while (true) {
+		state.walk = walk;
+		state.rescale(oldStride);
+
+		StrideQueue queue = state.waitingOn;
+		if (queue == null)
+		    return;
+		queue.total += delta;
+		state.weight += delta;
+
+		StrideState holder =
+		    queue.transferPriority ? queue.holder : null;
+		if (holder == null)
+		    return;
+		oldStride = holder.getStride();
+		holder.donated += delta;
+		if (holder.walk == walk)
+		    return;
+
+		state = holder;
+	    }
+	}
+
+	/**
+	 * Scale the distance between the associated thread's pass and its
+	 * queue's global pass, or the distance it will rejoin at, by the
+	 * change in its stride.
+	 */
+	private void rescale(long oldStride) {
+	    long stride = getStride();
+	    if (stride == oldStride)
+		return;
+
+	    if (waitingOn != null) {
+		long ahead = pass - waitingOn.globalPass;
+		pass = waitingOn.globalPass
+		    + (long) ((double) ahead * stride / oldStride);
+		waitingOn.reposition(this);
+	    }
+	    else {
+		remain = (long) ((double) remain * stride / oldStride);
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The associated thread's own tickets. */
+	protected int tickets = priorityDefault;
+	/** The tickets transferred to the associated thread. */
+	protected long donated = 0;
+
+	/** The associated thread's pass, while it is waiting. */
+	long pass = 0;
+	/**
+	 * How far the associated thread's pass was ahead of its queue's
+	 * global pass when it last left a queue.
+	 */
+	long remain;
+	/** When the associated thread was dispatched or last charged. */
+	long sliceStart = 0;
+
+	/** The queue the associated thread is waiting on, if any. */
+	StrideQueue waitingOn = null;
+	/** The tickets the associated thread counts for in that queue. */
+	long weight = 0;
+	/** The associated thread's position in that queue's heap. */
+	int heapIndex = -1;
+	/** When the associated thread began waiting, for ties. */
+	long arrival;
+	/** The last walk along a chain of holders that visited this thread. */
+	private long walk = 0;
+    }
+
+    /** The number of walks along chains of holders made so far. */
+    private long numWalks = 0;
+}
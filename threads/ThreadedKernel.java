@@ -53,6 +53,17 @@ public class ThreadedKernel extends Kernel {
         Condition2.SelfTest();
         Alarm.selfTest();
         Communicator.SelfTest();
+        PriorityScheduler.selfTest();
+        LotteryScheduler.selfTest();
+	if (Config.getBoolean("LotteryScheduler.benchmark", false))
+	    LotteryScheduler.benchmark();
+        MLFQScheduler.selfTest();
+	if (Config.getBoolean("MLFQScheduler.benchmark", false))
+	    MLFQScheduler.benchmark();
+        CFSScheduler.selfTest();
+	if (Config.getBoolean("CFSScheduler.fairnessReport", false))
+	    CFSScheduler.fairnessReport();
+        StrideScheduler.selfTest();
         ReactWater.selfTest();
       if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
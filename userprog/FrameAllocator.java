@@ -0,0 +1,459 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+
+/**
+ * Hands out frames of physical memory.
+ *
+ * <p>
+ * Free frames are kept on two stacks of frame numbers: frames whose contents
+ * are unknown, and frames known to be filled with zeros. Each frame records
+ * its position in its stack, or -1 if it is in use. Allocating or freeing a
+ * single frame is a push or a pop. A free frame can also be taken out of the
+ * middle of a stack by swapping it with the top, which is how runs of
+ * contiguous frames are allocated after finding them with a scan of the
+ * position array.
+ *
+ * <p>
+ * Freed frames still hold their last owner's data. A low-priority, rate
+ * limited daemon thread zeroes them in the background until a pool of zeroed
+ * frames is built up, so that pages which must start out as zeros, such as
+ * stack and heap pages, rarely need to be cleared on the spot. Callers that overwrite
+ * the whole frame anyway, like the loader, take unzeroed frames first to
+ * leave the pool for those that need it.
+ *
+ * <p>
+ * Allocation fails by returning -1 rather than throwing, so callers can back
+ * out cleanly when memory is exhausted.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator with every frame free. Frames start out
+     * unzeroed.
+     *
+     * @param numFrames the number of frames of physical memory.
+     */
+    public FrameAllocator(int numFrames) {
+        this(numFrames, Machine.processor().getMemory());
+    }
+
+    /**
+     * Allocate a new frame allocator over the specified memory, which need not
+     * be the machine's, with every frame free.
+     *
+     * @param numFrames the number of frames in <i>memory</i>.
+     * @param memory    the memory that frames are zeroed in.
+     */
+    FrameAllocator(int numFrames, byte[] memory) {
+        this.numFrames = numFrames;
+        this.memory = memory;
+        dirtyStack = new int[numFrames];
+        zeroedStack = new int[numFrames];
+        position = new int[numFrames];
+        zeroed = new boolean[numFrames];
+
+        // push in reverse so that low frames are handed out first
+        for (int ppn = numFrames - 1; ppn >= 0; ppn--)
+            push(ppn, false);
+    }
+
+    /**
+     * Start a daemon thread that zeroes free frames in the background, until
+     * the number of zeroed free frames reaches the <tt>nachos.conf</tt> key
+     * <tt>UserKernel.zeroedFrames</tt> (by default, a quarter of physical
+     * memory). A pool size of 0 disables the daemon.
+     *
+     * <p>
+     * The daemon lowers its own priority, but that only holds it back under a
+     * scheduler that has priorities; under <tt>RoundRobinScheduler</tt> it
+     * would compete equally with user processes. So it also zeroes at most
+     * <tt>UserKernel.zeroingBudget</tt> frames (by default 4) in a row, and
+     * then sleeps until the next timer interrupt.
+     */
+    public void startZeroingDaemon() {
+        zeroedTarget = Config.getInteger("UserKernel.zeroedFrames", numFrames / 4);
+        zeroingBudget = Math.max(1, Config.getInteger("UserKernel.zeroingBudget", 4));
+        if (zeroedTarget > 0)
+            new KThread(new Zeroer()).setName("frame zeroer").fork();
+    }
+
+    /**
+     * Allocate a single frame whose contents will be overwritten, preferring
+     * frames that have not been zeroed.
+     *
+     * @return the frame number, or -1 if no frame is free.
+     */
+    public int allocate() {
+        lock.acquire();
+        int ppn = pop(false);
+        lock.release();
+        return ppn;
+    }
+
+    /**
+     * Allocate a single frame filled with zeros. Takes a frame from the zeroed
+     * pool if it has one, and otherwise zeroes a frame before returning it.
+     *
+     * @return the frame number, or -1 if no frame is free.
+     */
+    public int allocateZeroed() {
+        lock.acquire();
+        int ppn = pop(true);
+        lock.release();
+        return ppn;
+    }
+
+    /**
+     * Allocate several frames whose contents will be overwritten, taking the
+     * lock only once.
+     *
+     * @param frames the array to store the frame numbers in.
+     * @param count  the number of frames wanted.
+     * @return the number of frames allocated, which is less than <i>count</i>
+     * only if physical memory ran out.
+     */
+    public int allocate(int[] frames, int count) {
+        return allocate(frames, count, false);
+    }
+
+    /**
+     * Allocate several frames filled with zeros, taking the lock only once.
+     *
+     * @param frames the array to store the frame numbers in.
+     * @param count  the number of frames wanted.
+     * @return the number of frames allocated, which is less than <i>count</i>
+     * only if physical memory ran out.
+     */
+    public int allocateZeroed(int[] frames, int count) {
+        return allocate(frames, count, true);
+    }
+
+    private int allocate(int[] frames, int count, boolean wantZeroed) {
+        Lib.assertTrue(count >= 0 && count <= frames.length);
+
+        lock.acquire();
+
+        int allocated = 0;
+        while (allocated < count && getNumFree() > 0)
+            frames[allocated++] = pop(wantZeroed);
+        if (allocated < count)
+            numFailures++;
+
+        lock.release();
+        return allocated;
+    }
+
+    /**
+     * Allocate a run of physically contiguous frames. Their contents are
+     * unknown.
+     *
+     * @param count the number of frames to allocate.
+     * @return the first frame of the run, or -1 if there is no run of
+     * <i>count</i> free frames.
+     */
+    public int allocateContiguous(int count) {
+        Lib.assertTrue(count > 0);
+
+        lock.acquire();
+
+        int first = -1;
+        int runLength = 0;
+        if (count <= getNumFree()) {
+            for (int ppn = 0; ppn < numFrames; ppn++) {
+                runLength = (position[ppn] >= 0) ? runLength + 1 : 0;
+                if (runLength == count) {
+                    first = ppn - count + 1;
+                    break;
+                }
+            }
+        }
+
+        if (first != -1) {
+            for (int ppn = first; ppn < first + count; ppn++)
+                take(ppn);
+            noteUsed();
+        }
+        else {
+            numFailures++;
+        }
+
+        lock.release();
+        return first;
+    }
+
+    /**
+     * Return a frame to the allocator.
+     *
+     * @param ppn the frame to free, which must be in use.
+     */
+    public void free(int ppn) {
+        lock.acquire();
+
+        Lib.assertTrue(ppn >= 0 && ppn < numFrames && position[ppn] == -1);
+        push(ppn, false);
+        needZeroing.wake();
+
+        lock.release();
+    }
+
+    /**
+     * Return several frames to the allocator at once, taking the lock only
+     * once.
+     *
+     * @param frames an array holding the frames to free, which must be in use.
+     * @param count  the number of frames to free from the start of
+     *               <i>frames</i>.
+     */
+    public void free(int[] frames, int count) {
+        lock.acquire();
+
+        for (int i = 0; i < count; i++) {
+            int ppn = frames[i];
+            Lib.assertTrue(ppn >= 0 && ppn < numFrames && position[ppn] == -1);
+            push(ppn, false);
+        }
+        needZeroing.wake();
+
+        lock.release();
+    }
+
+    /**
+     * Return the number of frames managed by this allocator.
+     *
+     * @return the number of frames of physical memory.
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Return the number of frames that are currently free.
+     *
+     * @return the number of free frames.
+     */
+    public int getNumFree() {
+        return numDirty + numZeroed;
+    }
+
+    /**
+     * Return the number of free frames that are known to be zeroed.
+     *
+     * @return the number of zeroed free frames.
+     */
+    public int getNumZeroed() {
+        return numZeroed;
+    }
+
+    /**
+     * Return the number of frames that are currently in use.
+     *
+     * @return the number of allocated frames.
+     */
+    public int getNumUsed() {
+        return numFrames - getNumFree();
+    }
+
+    /**
+     * Return the largest number of frames that have been in use at once.
+     *
+     * @return the peak number of allocated frames.
+     */
+    public int getPeakUsed() {
+        return peakUsed;
+    }
+
+    /**
+     * Return the number of allocations that failed for lack of free frames.
+     *
+     * @return the number of failed allocations.
+     */
+    public int getNumFailures() {
+        return numFailures;
+    }
+
+    /**
+     * Print this allocator's statistics.
+     */
+    public void print() {
+        System.out.println("Frames: total " + numFrames
+            + ", in use " + getNumUsed()
+            + ", peak " + peakUsed
+            + ", failed allocations " + numFailures);
+        System.out.println("Zeroing: pool hits " + numPoolHits
+            + ", zeroed on demand " + numZeroedOnDemand
+            + ", zeroed in background " + numZeroedInBackground);
+    }
+
+    /**
+     * Check single, contiguous and zeroed allocation on a small private
+     * allocator, over memory of its own so that no frame in use is touched.
+     */
+    public static void selfTest() {
+        byte[] memory = new byte[8 * pageSize];
+        FrameAllocator allocator = new FrameAllocator(8, memory);
+
+        int[] frames = new int[8];
+        for (int i = 0; i < 8; i++)
+            frames[i] = allocator.allocate();
+        Lib.assertTrue(allocator.allocate() == -1 && allocator.getNumFree() == 0);
+
+        // free frames 2, 3, 4 and 6: the only run of three starts at 2
+        allocator.free(frames[2]);
+        allocator.free(frames[3]);
+        allocator.free(frames[4]);
+        allocator.free(frames[6]);
+        Lib.assertTrue(allocator.allocateContiguous(4) == -1);
+        Lib.assertTrue(allocator.allocateContiguous(3) == 2);
+        Lib.assertTrue(allocator.allocate() == 6);
+
+        Lib.assertTrue(allocator.getNumUsed() == 8 && allocator.getPeakUsed() == 8);
+        Lib.assertTrue(allocator.getNumFailures() == 2);
+
+        // a batch gets as many frames as there are, and goes back in one call
+        allocator.free(frames, 8);
+        Lib.assertTrue(allocator.allocate(frames, 8) == 8);
+        allocator.free(frames, 5);
+        Lib.assertTrue(allocator.allocate(frames, 6) == 5);
+        Lib.assertTrue(allocator.getNumFailures() == 3 && allocator.getNumFree() == 0);
+
+        // with no daemon running, a zeroed frame is cleared on demand
+        allocator.free(frames[0]);
+        memory[frames[0] * pageSize] = 1;
+        int ppn = allocator.allocateZeroed();
+        Lib.assertTrue(ppn == frames[0] && memory[ppn * pageSize] == 0);
+        Lib.assertTrue(allocator.numZeroedOnDemand == 1);
+    }
+
+    /**
+     * Take a free frame, from the zeroed stack if <i>wantZeroed</i> is set and
+     * from the other stack otherwise, falling back to the other stack if the
+     * preferred one is empty. A frame wanted zeroed that is not is cleared.
+     */
+    private int pop(boolean wantZeroed) {
+        if (getNumFree() == 0) {
+            numFailures++;
+            return -1;
+        }
+
+        boolean fromZeroed = wantZeroed ? (numZeroed > 0) : (numDirty == 0);
+        int ppn = fromZeroed ? zeroedStack[numZeroed - 1] : dirtyStack[numDirty - 1];
+        take(ppn);
+        noteUsed();
+
+        if (wantZeroed) {
+            if (fromZeroed) {
+                numPoolHits++;
+            }
+            else {
+                zeroFrame(ppn);
+                numZeroedOnDemand++;
+            }
+        }
+        if (fromZeroed)
+            needZeroing.wake();
+
+        return ppn;
+    }
+
+    private void push(int ppn, boolean isZeroed) {
+        zeroed[ppn] = isZeroed;
+        if (isZeroed) {
+            position[ppn] = numZeroed;
+            zeroedStack[numZeroed++] = ppn;
+        }
+        else {
+            position[ppn] = numDirty;
+            dirtyStack[numDirty++] = ppn;
+        }
+    }
+
+    /**
+     * Remove a free frame from its stack, filling its slot with the frame on
+     * top.
+     */
+    private void take(int ppn) {
+        int slot = position[ppn];
+        if (zeroed[ppn]) {
+            int top = zeroedStack[--numZeroed];
+            zeroedStack[slot] = top;
+            position[top] = slot;
+        }
+        else {
+            int top = dirtyStack[--numDirty];
+            dirtyStack[slot] = top;
+            position[top] = slot;
+        }
+        position[ppn] = -1;
+    }
+
+    private void noteUsed() {
+        peakUsed = Math.max(peakUsed, getNumUsed());
+    }
+
+    private void zeroFrame(int ppn) {
+        Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+    }
+
+    /**
+     * Zeroes free frames one at a time, yielding between frames and resting
+     * until the next timer interrupt after every <tt>zeroingBudget</tt> of
+     * them, and sleeps while the zeroed pool is full or there is nothing left
+     * to zero.
+     */
+    private class Zeroer implements Runnable {
+        public void run() {
+            boolean intStatus = Machine.interrupt().disable();
+            while (ThreadedKernel.scheduler.decreasePriority())
+                ;
+            Machine.interrupt().restore(intStatus);
+
+            int budget = zeroingBudget;
+            while (true) {
+                lock.acquire();
+                while (numDirty == 0 || numZeroed >= zeroedTarget) {
+                    needZeroing.sleep();
+                    budget = zeroingBudget;
+                }
+
+                int ppn = dirtyStack[numDirty - 1];
+                take(ppn);
+                zeroFrame(ppn);
+                push(ppn, true);
+                numZeroedInBackground++;
+                lock.release();
+
+                if (--budget > 0) {
+                    KThread.yield();
+                }
+                else {
+                    ThreadedKernel.alarm.waitUntil(1);
+                    budget = zeroingBudget;
+                }
+            }
+        }
+    }
+
+    private static final int pageSize = Processor.pageSize;
+
+    private int numFrames;
+    private byte[] memory;
+    private int[] dirtyStack, zeroedStack;
+    private int numDirty = 0, numZeroed = 0;
+    private int[] position;
+    private boolean[] zeroed;
+
+    private int zeroedTarget = 0;
+    private int zeroingBudget = 1;
+
+    private int peakUsed = 0;
+    private int numFailures = 0;
+    private int numPoolHits = 0;
+    private int numZeroedOnDemand = 0;
+    private int numZeroedInBackground = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 needZeroing = new Condition2(lock);
+}
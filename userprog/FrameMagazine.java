@@ -0,0 +1,143 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A small cache of frames kept by one process, in front of the shared
+ * <tt>FrameAllocator</tt>. The magazine holds zeroed frames ready for pages
+ * the process maps on demand, and collects the frames the process frees.
+ * Most allocations and frees are served with interrupts briefly disabled,
+ * without touching the allocator's lock. When the zeroed frames run out, a
+ * batch is refilled from the allocator's zeroed pool. When the freed frames
+ * fill up, they all go back to the allocator in a single batch.
+ *
+ * <p>
+ * A magazine holds at most a few frames, so memory cached by one process is
+ * never a large share of what the others could use, and all of it goes back
+ * to the allocator when the process exits.
+ */
+public class FrameMagazine {
+    /**
+     * Allocate a new, empty magazine.
+     *
+     * @param allocator the allocator to refill from and return frames to.
+     */
+    public FrameMagazine(FrameAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Allocate a frame filled with zeros, from the magazine if it has one.
+     *
+     * @return the frame number, or -1 if physical memory is exhausted.
+     */
+    public int allocateZeroed() {
+        boolean intStatus = Machine.interrupt().disable();
+        int ppn = (numZeroed > 0) ? zeroedFrames[--numZeroed] : -1;
+        Machine.interrupt().restore(intStatus);
+
+        if (ppn == -1)
+            ppn = refill();
+        return ppn;
+    }
+
+    /**
+     * Free a frame into the magazine, first returning the frames it has
+     * collected to the allocator if it is full.
+     *
+     * @param ppn the frame to free.
+     */
+    public void free(int ppn) {
+        boolean intStatus = Machine.interrupt().disable();
+        boolean cached = (numFreed < capacity);
+        if (cached)
+            freedFrames[numFreed++] = ppn;
+        Machine.interrupt().restore(intStatus);
+
+        if (!cached)
+            flush(ppn);
+    }
+
+    /**
+     * Return every cached frame to the allocator.
+     */
+    public void drain() {
+        lock.acquire();
+
+        boolean intStatus = Machine.interrupt().disable();
+        int drained = numZeroed + numFreed;
+        System.arraycopy(zeroedFrames, 0, batch, 0, numZeroed);
+        System.arraycopy(freedFrames, 0, batch, numZeroed, numFreed);
+        numZeroed = numFreed = 0;
+        Machine.interrupt().restore(intStatus);
+
+        allocator.free(batch, drained);
+
+        lock.release();
+    }
+
+    /**
+     * Fetch a batch of zeroed frames from the allocator, keep all but one, and
+     * return that one.
+     */
+    private int refill() {
+        lock.acquire();
+
+        int ppn = -1;
+        int got = allocator.allocateZeroed(batch, capacity / 2);
+        if (got > 0) {
+            ppn = batch[--got];
+
+            boolean intStatus = Machine.interrupt().disable();
+            int kept = Math.min(got, capacity - numZeroed);
+            System.arraycopy(batch, 0, zeroedFrames, numZeroed, kept);
+            numZeroed += kept;
+            Machine.interrupt().restore(intStatus);
+
+            // another thread of this process may have refilled the magazine
+            // while we waited
+            if (kept < got) {
+                System.arraycopy(batch, kept, batch, 0, got - kept);
+                allocator.free(batch, got - kept);
+            }
+        }
+
+        lock.release();
+        return ppn;
+    }
+
+    /**
+     * Return the collected frames, and one more, to the allocator.
+     */
+    private void flush(int ppn) {
+        lock.acquire();
+
+        boolean intStatus = Machine.interrupt().disable();
+        int flushed = numFreed;
+        System.arraycopy(freedFrames, 0, batch, 0, flushed);
+        numFreed = 0;
+        Machine.interrupt().restore(intStatus);
+
+        batch[flushed++] = ppn;
+        allocator.free(batch, flushed);
+
+        lock.release();
+    }
+
+    /**
+     * The most zeroed frames, and the most freed frames, a magazine holds.
+     */
+    public static final int capacity = 4;
+
+    private FrameAllocator allocator;
+
+    private int[] zeroedFrames = new int[capacity];
+    private int numZeroed = 0;
+    private int[] freedFrames = new int[capacity];
+    private int numFreed = 0;
+
+    /** Serializes refills and flushes, and guards <tt>batch</tt>. */
+    private Lock lock = new Lock();
+    private int[] batch = new int[2 * capacity + 1];
+}
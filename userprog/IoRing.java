@@ -0,0 +1,281 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A pair of asynchronous I/O rings shared between a user process and the
+ * kernel. The process places requests in a submission ring in its own memory
+ * and hands them to the kernel with a single <tt>iosubmit()</tt> call. A pool
+ * of kernel worker threads performs the requests against the file system and
+ * posts results directly into a completion ring, also in user memory, so a
+ * process can overlap I/O with computation and reap completions without a
+ * trap per operation.
+ *
+ * <p>
+ * Both rings start with a two word header, <tt>head</tt> followed by
+ * <tt>tail</tt>, each a free-running counter. The producer of a ring only
+ * advances its tail and the consumer only advances its head:
+ *
+ * <ul>
+ * <li>submission ring: the process fills entries and advances <tt>tail</tt>,
+ * the kernel advances <tt>head</tt> as it consumes them. Each entry is
+ * <tt>{opcode, fd, buffer, count, offset, userData}</tt>.
+ * <li>completion ring: the kernel fills entries and advances <tt>tail</tt>,
+ * the process advances <tt>head</tt> as it reaps them. Each entry is
+ * <tt>{userData, result}</tt>.
+ * </ul>
+ *
+ * An <tt>offset</tt> of -1 reads or writes at the current position of a
+ * stream (e.g. the console) instead of at a fixed file offset.
+ */
+public class IoRing {
+    /**
+     * Allocate a new pair of rings for the specified process.
+     *
+     * @param process the process that owns the rings.
+     * @param sqAddr  the virtual address of the submission ring.
+     * @param cqAddr  the virtual address of the completion ring.
+     * @param entries the number of entries in each ring.
+     */
+    IoRing(UserProcess process, int sqAddr, int cqAddr, int entries) {
+        this.process = process;
+        this.sqAddr = sqAddr;
+        this.cqAddr = cqAddr;
+        this.entries = entries;
+    }
+
+    /**
+     * Check that both rings lie in writable memory and reset their headers.
+     *
+     * @return <tt>true</tt> if the rings are usable.
+     */
+    boolean initialize() {
+        byte[] zero = new byte[sqEntrySize];
+        for (int i = 0; i < entries; i++) {
+            if (process.writeVirtualMemory(sqSlot(i), zero) != sqEntrySize)
+                return false;
+            if (process.writeVirtualMemory(cqSlot(i), zero, 0, cqEntrySize) != cqEntrySize)
+                return false;
+        }
+
+        return writeWord(sqAddr, 0) && writeWord(sqAddr + 4, 0)
+            && writeWord(cqAddr, 0) && writeWord(cqAddr + 4, 0);
+    }
+
+    /**
+     * Consume up to <i>count</i> entries from the submission ring and queue
+     * them for the worker threads. Fewer entries are consumed if the
+     * completion ring does not have room for their results.
+     *
+     * @param count the maximum number of entries to submit.
+     * @return the number of entries submitted, or -1 if the rings have become
+     * unreadable.
+     */
+    int submit(int count) {
+        int tail = readWord(sqAddr + 4);
+        int cqHead = readWord(cqAddr);
+        if (tail == invalidWord || cqHead == invalidWord)
+            return -1;
+
+        lock.acquire();
+        int room = entries - inFlight - (cqTail - cqHead);
+        int available = tail - sqHead;
+        int toSubmit = Math.max(0, Math.min(count, Math.min(available, room)));
+
+        byte[] entry = new byte[sqEntrySize];
+        int submitted = 0;
+        while (submitted < toSubmit) {
+            if (process.readVirtualMemory(sqSlot(sqHead), entry) != sqEntrySize)
+                break;
+
+            Request request = new Request(this,
+                Lib.bytesToInt(entry, 0), process.referenceFile(Lib.bytesToInt(entry, 4)),
+                Lib.bytesToInt(entry, 8), Lib.bytesToInt(entry, 12),
+                Lib.bytesToInt(entry, 16), Lib.bytesToInt(entry, 20));
+
+            sqHead++;
+            inFlight++;
+            submitted++;
+            requests.add(request);
+        }
+        writeWord(sqAddr, sqHead);
+        lock.release();
+
+        return submitted;
+    }
+
+    /**
+     * Block until at least <i>minComplete</i> completions are waiting in the
+     * completion ring, or until nothing is left in flight.
+     *
+     * @param minComplete the number of completions to wait for.
+     * @return the number of completions waiting to be reaped, or -1 if the
+     * completion ring has become unreadable.
+     */
+    int waitForCompletions(int minComplete) {
+        lock.acquire();
+        int ready;
+        while (true) {
+            int cqHead = readWord(cqAddr);
+            if (cqHead == invalidWord) {
+                ready = -1;
+                break;
+            }
+            ready = cqTail - cqHead;
+            if (ready >= minComplete || inFlight == 0)
+                break;
+            completed.sleep();
+        }
+        lock.release();
+
+        return ready;
+    }
+
+    /**
+     * Wait for every request in flight to complete. Called when the owning
+     * process exits, so that no worker writes into memory that has already
+     * been released.
+     */
+    void drain() {
+        lock.acquire();
+        while (inFlight > 0)
+            completed.sleep();
+        lock.release();
+    }
+
+    private void complete(int userData, int result) {
+        byte[] entry = new byte[cqEntrySize];
+        Lib.bytesFromInt(entry, 0, userData);
+        Lib.bytesFromInt(entry, 4, result);
+
+        lock.acquire();
+        // the entry must be visible before the tail that publishes it
+        process.writeVirtualMemory(cqSlot(cqTail), entry);
+        cqTail++;
+        writeWord(cqAddr + 4, cqTail);
+        inFlight--;
+        completed.wakeAll();
+        lock.release();
+    }
+
+    private int sqSlot(int index) {
+        return sqAddr + headerSize + (index % entries) * sqEntrySize;
+    }
+
+    private int cqSlot(int index) {
+        return cqAddr + headerSize + (index % entries) * cqEntrySize;
+    }
+
+    private int readWord(int vaddr) {
+        byte[] word = new byte[4];
+        if (process.readVirtualMemory(vaddr, word) != 4)
+            return invalidWord;
+        return Lib.bytesToInt(word, 0);
+    }
+
+    private boolean writeWord(int vaddr, int value) {
+        return process.writeVirtualMemory(vaddr, Lib.bytesFromInt(value)) == 4;
+    }
+
+    /**
+     * Start the worker pool if it is not already running. The number of
+     * workers is given by the <tt>nachos.conf</tt> key
+     * <tt>UserKernel.ioWorkers</tt>.
+     */
+    static void startWorkers() {
+        boolean intStatus = Machine.interrupt().disable();
+        if (requests == null) {
+            requests = new SynchList();
+            int numWorkers = Config.getInteger("UserKernel.ioWorkers", 4);
+            for (int i = 0; i < numWorkers; i++)
+                new KThread(new Worker()).setName("io worker " + i).fork();
+        }
+        Machine.interrupt().restore(intStatus);
+    }
+
+    private static class Worker implements Runnable {
+        public void run() {
+            while (true)
+                ((Request) requests.removeFirst()).perform();
+        }
+    }
+
+    private static class Request {
+        Request(IoRing ring, int opcode, UserProcess.FileTriple fileTriple,
+                int buffer, int count, int offset, int userData) {
+            this.ring = ring;
+            this.opcode = opcode;
+            this.fileTriple = fileTriple;
+            this.buffer = buffer;
+            this.count = count;
+            this.offset = offset;
+            this.userData = userData;
+        }
+
+        /**
+         * Perform the request and post its result. The request holds a
+         * reference on its file from submission until now, so the process
+         * closing or reusing the descriptor in the meantime does not close
+         * the file under the worker.
+         */
+        void perform() {
+            int result = transfer();
+            if (fileTriple != null)
+                ring.process.releaseFile(fileTriple);
+            ring.complete(userData, result);
+        }
+
+        private int transfer() {
+            if (fileTriple == null || count < 0 || count > maxTransfer)
+                return -1;
+
+            OpenFile file = fileTriple.file;
+            byte[] data = new byte[count];
+            switch (opcode) {
+                case opRead: {
+                    int read = (offset < 0) ? file.read(data, 0, count)
+                        : file.read(offset, data, 0, count);
+                    if (read <= 0)
+                        return read;
+                    return ring.process.writeVirtualMemory(buffer, data, 0, read);
+                }
+                case opWrite: {
+                    int length = ring.process.readVirtualMemory(buffer, data, 0, count);
+                    if (length < count)
+                        return -1;
+                    return (offset < 0) ? file.write(data, 0, count)
+                        : file.write(offset, data, 0, count);
+                }
+                default:
+                    return -1;
+            }
+        }
+
+        private IoRing ring;
+        private int opcode;
+        private UserProcess.FileTriple fileTriple;
+        private int buffer, count, offset, userData;
+    }
+
+    /** The largest number of entries a ring may hold. */
+    static final int maxEntries = 256;
+
+    private static final int
+        opRead = 0,
+        opWrite = 1;
+
+    private static final int headerSize = 8;
+    private static final int sqEntrySize = 24;
+    private static final int cqEntrySize = 8;
+    private static final int maxTransfer = 16 * Processor.pageSize;
+    private static final int invalidWord = 0x80000000;
+
+    private static SynchList requests = null;
+
+    private UserProcess process;
+    private int sqAddr, cqAddr, entries;
+    private int sqHead = 0, cqTail = 0, inFlight = 0;
+    private Lock lock = new Lock();
+    private Condition2 completed = new Condition2(lock);
+}
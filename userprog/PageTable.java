@@ -0,0 +1,430 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A process's page table, kept as a two-level tree: a small directory of
+ * leaves, each holding the translations of <tt>leafSize</tt> consecutive
+ * virtual pages. A leaf is only allocated when a page in its range is first
+ * mapped, and is freed again when its last page is unmapped, so a process
+ * pays for the pages it has mapped rather than for the span of its address
+ * space; the heap and stack reservations cost nothing until they are used.
+ *
+ * <p>
+ * Each page is a single <tt>long</tt> in its leaf, with no object behind it:
+ * its physical page number, its valid, read-only, used and dirty bits, a
+ * few spare bits for the kernel's own use, and the swap slot holding a copy
+ * of the page, if any. The virtual page number is the page's position in
+ * the tree. The kernel reads and updates the bits in place; a
+ * <tt>TranslationEntry</tt> is only made for code that needs one, such as
+ * the TLB, by <tt>getEntry()</tt>.
+ *
+ * <p>
+ * When the processor has no TLB it needs an array of
+ * <tt>TranslationEntry</tt> indexed by virtual page number, on which it sets
+ * the used and dirty bits itself. The kernel keeps a single such array, the
+ * processor's view, at a cost of one reference per page of the largest
+ * address space. Its slots are filled with entries from a shared pool: only
+ * the valid pages of the attached table have one, and an entry goes back to
+ * the pool when its page is invalidated or the table is detached, so the
+ * number of entries follows the pages mapped rather than the span. When a
+ * process is switched in, the entries of the pages it has mapped are filled
+ * in from its table (see <tt>attach()</tt>); while it runs, every change to
+ * its table is written through to the view, and the bits the processor sets
+ * are folded back into the table whenever the kernel reads them. A page the
+ * view does not hold raises a page fault, just as it would if the page were
+ * missing from a dense table.
+ */
+public class PageTable {
+    /**
+     * Allocate a new, empty page table.
+     *
+     * @param numPages the number of pages spanned by the address space.
+     */
+    public PageTable(int numPages) {
+        this.numPages = numPages;
+        leaves = new long[(numPages + leafSize - 1) / leafSize][];
+        leafCounts = new int[leaves.length];
+    }
+
+    /**
+     * Return the number of pages spanned by the address space.
+     *
+     * @return the number of virtual pages.
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Return whether the table holds anything for a virtual page.
+     *
+     * @param vpn the virtual page.
+     * @return <tt>true</tt> if the page is mapped, valid or not.
+     */
+    public boolean isMapped(int vpn) {
+        return load(vpn) != 0;
+    }
+
+    /**
+     * Map a virtual page to a physical page, replacing all of its flags. The
+     * page keeps its swap slot.
+     *
+     * @param vpn   the virtual page.
+     * @param ppn   the physical page, or -1 if the page has none.
+     * @param flags the page's flags, any of <tt>flagValid</tt>,
+     *              <tt>flagReadOnly</tt>, <tt>flagUsed</tt>,
+     *              <tt>flagDirty</tt> and the spare flags.
+     */
+    public void set(int vpn, int ppn, int flags) {
+        Lib.assertTrue(ppn >= -1 && ppn < ppnMask
+            && (flags & ~flagMask) == 0);
+
+        long word = load(vpn)
+            & ~((long) ppnMask | ((long) flagMask << flagShift));
+        store(vpn, word | present | (ppn + 1)
+            | ((long) flags << flagShift));
+    }
+
+    /**
+     * Unmap a virtual page, forgetting everything the table held for it,
+     * including its swap slot.
+     *
+     * @param vpn the virtual page.
+     */
+    public void remove(int vpn) {
+        if (load(vpn) != 0)
+            store(vpn, 0);
+    }
+
+    /**
+     * Return the physical page a virtual page is mapped to.
+     *
+     * @param vpn the virtual page.
+     * @return the physical page, or -1 if the page has none.
+     */
+    public int getPPN(int vpn) {
+        return (int) (load(vpn) & ppnMask) - 1;
+    }
+
+    /**
+     * Change the physical page a mapped virtual page is mapped to.
+     *
+     * @param vpn the virtual page.
+     * @param ppn the physical page.
+     */
+    public void setPPN(int vpn, int ppn) {
+        set(vpn, ppn, getFlags(vpn));
+    }
+
+    /**
+     * Return a virtual page's flags.
+     *
+     * @param vpn the virtual page.
+     * @return the flags, or 0 if the page is not mapped.
+     */
+    public int getFlags(int vpn) {
+        return (int) (load(vpn) >>> flagShift) & flagMask;
+    }
+
+    /**
+     * Return whether any of the specified flags are set for a virtual page.
+     *
+     * @param vpn   the virtual page.
+     * @param flags the flags to test.
+     * @return <tt>true</tt> if the page is mapped and any of <i>flags</i> is
+     * set.
+     */
+    public boolean isSet(int vpn, int flags) {
+        return (getFlags(vpn) & flags) != 0;
+    }
+
+    /**
+     * Set flags for a mapped virtual page.
+     *
+     * @param vpn   the virtual page.
+     * @param flags the flags to set.
+     */
+    public void setFlags(int vpn, int flags) {
+        Lib.assertTrue((flags & ~flagMask) == 0);
+
+        long word = load(vpn);
+        Lib.assertTrue(word != 0);
+        store(vpn, word | ((long) flags << flagShift));
+    }
+
+    /**
+     * Clear flags for a virtual page. Does nothing if the page is not mapped.
+     *
+     * @param vpn   the virtual page.
+     * @param flags the flags to clear.
+     */
+    public void clearFlags(int vpn, int flags) {
+        Lib.assertTrue((flags & ~flagMask) == 0);
+
+        long word = load(vpn);
+        if (word != 0)
+            store(vpn, word & ~((long) flags << flagShift));
+    }
+
+    /**
+     * Return the swap slot holding a copy of a virtual page.
+     *
+     * @param vpn the virtual page.
+     * @return the slot, or -1 if the page has no copy in swap.
+     */
+    public int getSwapSlot(int vpn) {
+        return (int) (load(vpn) >>> slotShift) - 1;
+    }
+
+    /**
+     * Record the swap slot holding a copy of a virtual page. A page that is
+     * not mapped becomes mapped, invalid, if it is given a slot.
+     *
+     * @param vpn  the virtual page.
+     * @param slot the slot, or -1 if the page has no copy in swap.
+     */
+    public void setSwapSlot(int vpn, int slot) {
+        Lib.assertTrue(slot >= -1);
+
+        long word = load(vpn);
+        if (word == 0) {
+            if (slot == -1)
+                return;
+            word = present;
+        }
+        store(vpn, (word & ((1L << slotShift) - 1))
+            | ((long) (slot + 1) << slotShift));
+    }
+
+    /**
+     * Return a <tt>TranslationEntry</tt> for a virtual page, for code that
+     * needs one. The entry is a copy; changing it does not change the table.
+     *
+     * @param vpn the virtual page.
+     * @return a new translation, or <tt>null</tt> if the page is not mapped.
+     */
+    public TranslationEntry getEntry(int vpn) {
+        long word = load(vpn);
+        if (word == 0)
+            return null;
+
+        TranslationEntry entry = new TranslationEntry();
+        unpack(vpn, word, entry);
+        return entry;
+    }
+
+    /**
+     * Return the first mapped page at or above a virtual page, skipping
+     * unallocated leaves whole.
+     *
+     * @param vpn the virtual page to start from.
+     * @return the next mapped page, or -1 if there is none.
+     */
+    public int nextMapped(int vpn) {
+        while (vpn < numPages) {
+            long[] leaf = leaves[vpn / leafSize];
+            if (leaf == null) {
+                vpn = (vpn / leafSize + 1) * leafSize;
+                continue;
+            }
+            if (leaf[vpn % leafSize] != 0)
+                return vpn;
+            vpn++;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the number of pages that are mapped.
+     *
+     * @return the number of pages the table holds anything for.
+     */
+    public int getNumMapped() {
+        return numMapped;
+    }
+
+    /**
+     * Return the number of leaves allocated.
+     *
+     * @return the number of leaves.
+     */
+    public int getNumLeaves() {
+        return numLeaves;
+    }
+
+    /**
+     * Make this table the one the processor translates through, when the
+     * processor has no TLB. Folds the bits the processor set into the table
+     * attached before this one and clears its pages from the processor's
+     * view, then fills in this table's valid pages.
+     */
+    public void attach() {
+        if (attached == this)
+            return;
+
+        if (attached != null)
+            attached.detach();
+
+        if (view == null || view.length < numPages)
+            view = new TranslationEntry[numPages];
+
+        attached = this;
+        for (int vpn = nextMapped(0); vpn != -1; vpn = nextMapped(vpn + 1))
+            refresh(vpn, leaves[vpn / leafSize][vpn % leafSize]);
+
+        Machine.processor().setPageTable(view);
+    }
+
+    private void detach() {
+        for (int vpn = nextMapped(0); vpn != -1; vpn = nextMapped(vpn + 1)) {
+            load(vpn);
+            clearView(vpn);
+        }
+        attached = null;
+    }
+
+    /**
+     * Return a page's word, first folding in the used and dirty bits the
+     * processor set in its view, if this table is attached.
+     */
+    private long load(int vpn) {
+        Lib.assertTrue(vpn >= 0 && vpn < numPages);
+
+        long[] leaf = leaves[vpn / leafSize];
+        if (leaf == null)
+            return 0;
+
+        long word = leaf[vpn % leafSize];
+        if (attached == this && view[vpn] != null) {
+            TranslationEntry entry = view[vpn];
+            int bits = (entry.used ? flagUsed : 0)
+                | (entry.dirty ? flagDirty : 0);
+            if (bits != 0) {
+                word |= (long) bits << flagShift;
+                leaf[vpn % leafSize] = word;
+                entry.used = entry.dirty = false;
+            }
+        }
+        return word;
+    }
+
+    /**
+     * Replace a page's word, allocating or freeing its leaf as needed, and
+     * write it through to the processor's view if this table is attached.
+     */
+    private void store(int vpn, long word) {
+        int dir = vpn / leafSize;
+        long[] leaf = leaves[dir];
+        if (leaf == null) {
+            if (word == 0)
+                return;
+            leaf = leaves[dir] = new long[leafSize];
+            numLeaves++;
+        }
+
+        long old = leaf[vpn % leafSize];
+        leaf[vpn % leafSize] = word;
+        if (old == 0 && word != 0) {
+            leafCounts[dir]++;
+            numMapped++;
+        }
+        else if (old != 0 && word == 0) {
+            numMapped--;
+            if (--leafCounts[dir] == 0) {
+                leaves[dir] = null;
+                numLeaves--;
+            }
+        }
+
+        if (attached == this)
+            refresh(vpn, word);
+    }
+
+    /**
+     * Make the processor's view of a page match its word. The used and dirty
+     * bits are left clear in the view; they are kept in the table.
+     */
+    private void refresh(int vpn, long word) {
+        if ((word >>> flagShift & flagValid) == 0) {
+            clearView(vpn);
+            return;
+        }
+
+        TranslationEntry entry = view[vpn];
+        if (entry == null) {
+            entry = spareEntries.isEmpty() ? new TranslationEntry()
+                : spareEntries.remove(spareEntries.size() - 1);
+        }
+        unpack(vpn, word, entry);
+        entry.used = entry.dirty = false;
+        view[vpn] = entry;
+    }
+
+    /**
+     * Empty a slot of the processor's view, returning its entry to the pool.
+     */
+    private static void clearView(int vpn) {
+        if (view[vpn] != null) {
+            spareEntries.add(view[vpn]);
+            view[vpn] = null;
+        }
+    }
+
+    private static void unpack(int vpn, long word, TranslationEntry entry) {
+        int flags = (int) (word >>> flagShift) & flagMask;
+        entry.vpn = vpn;
+        entry.ppn = (int) (word & ppnMask) - 1;
+        entry.valid = (flags & flagValid) != 0;
+        entry.readOnly = (flags & flagReadOnly) != 0;
+        entry.used = (flags & flagUsed) != 0;
+        entry.dirty = (flags & flagDirty) != 0;
+    }
+
+    /** The number of pages covered by each leaf. */
+    public static final int leafSize = 64;
+
+    /** The page is mapped to its physical page. */
+    public static final int flagValid = 0x01;
+    /** The page may not be written. */
+    public static final int flagReadOnly = 0x02;
+    /** The page has been read or written. */
+    public static final int flagUsed = 0x04;
+    /** The page has been written. */
+    public static final int flagDirty = 0x08;
+    /**
+     * The first of three flags with no meaning to the table, for the kernel
+     * to keep its own per-page state in; the others are
+     * <tt>flagSpare &lt;&lt; 1</tt> and <tt>flagSpare &lt;&lt; 2</tt>.
+     */
+    public static final int flagSpare = 0x10;
+
+    /*
+     * A page's word: bits 0-23 hold the physical page number plus one, bits
+     * 24-30 the flags, bit 31 is set in every mapped page, and bits 32-63
+     * hold the swap slot plus one.
+     */
+    private static final int ppnMask = 0xFFFFFF;
+    private static final int flagShift = 24;
+    private static final int flagMask = 0x7F;
+    private static final long present = 1L << 31;
+    private static final int slotShift = 32;
+
+    private int numPages;
+    private long[][] leaves;
+    /** The number of pages mapped in each leaf. */
+    private int[] leafCounts;
+    private int numMapped = 0;
+    private int numLeaves = 0;
+
+    /**
+     * The processor's view, the entries not in it, and the table it
+     * currently shows.
+     */
+    private static TranslationEntry[] view = null;
+    private static ArrayList<TranslationEntry> spareEntries =
+        new ArrayList<TranslationEntry>();
+    private static PageTable attached = null;
+}
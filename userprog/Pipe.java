@@ -0,0 +1,188 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A one-way channel between processes, backed by a bounded buffer in kernel
+ * memory. Data written to the write end can be read from the read end, in
+ * order, without ever touching the file system.
+ *
+ * <p>
+ * A read blocks until at least one byte is available and then returns as
+ * much as it can without blocking again; once the write end is closed and the
+ * buffer is empty, reads return 0 to signal end of file. A write blocks until
+ * all of its data has been placed in the buffer. Writing after the read end
+ * has been closed fails.
+ */
+public class Pipe {
+    /**
+     * Allocate a new, empty pipe.
+     */
+    public Pipe() {
+    }
+
+    /**
+     * Return an <tt>OpenFile</tt> that reads from this pipe. Closing it closes
+     * the read end of the pipe.
+     *
+     * @return the read end of the pipe.
+     */
+    public OpenFile openForReading() {
+        return readEnd;
+    }
+
+    /**
+     * Return an <tt>OpenFile</tt> that writes to this pipe. Closing it closes
+     * the write end of the pipe.
+     *
+     * @return the write end of the pipe.
+     */
+    public OpenFile openForWriting() {
+        return writeEnd;
+    }
+
+    /**
+     * Check that data passes through a pipe in order, that each end refuses
+     * the other end's operation, and that closing either end is seen by the
+     * other.
+     */
+    public static void selfTest() {
+        Pipe pipe = new Pipe();
+        OpenFile reader = pipe.openForReading();
+        OpenFile writer = pipe.openForWriting();
+        byte[] data = { 1, 2, 3, 4 };
+        byte[] buf = new byte[8];
+
+        // reading the write end or writing the read end fails, without
+        // blocking and without touching the buffer
+        Lib.assertTrue(writer.read(buf, 0, buf.length) == -1);
+        Lib.assertTrue(reader.write(data, 0, data.length) == -1);
+
+        Lib.assertTrue(writer.write(data, 0, data.length) == data.length);
+        Lib.assertTrue(reader.read(buf, 0, buf.length) == data.length);
+        for (int i = 0; i < data.length; i++)
+            Lib.assertTrue(buf[i] == data[i]);
+
+        // end of file once the writer is gone and the buffer is empty
+        writer.write(data, 0, 2);
+        writer.close();
+        Lib.assertTrue(reader.read(buf, 0, buf.length) == 2);
+        Lib.assertTrue(reader.read(buf, 0, buf.length) == 0);
+        Lib.assertTrue(writer.write(data, 0, data.length) == -1);
+
+        // writing fails once the reader is gone
+        pipe = new Pipe();
+        pipe.openForReading().close();
+        Lib.assertTrue(pipe.openForWriting().write(data, 0, data.length) == -1);
+    }
+
+    private int read(byte[] buf, int offset, int length) {
+        lock.acquire();
+
+        while (count == 0 && writerOpen)
+            dataAvailable.sleep();
+
+        int amount = Math.min(length, count);
+        for (int i = 0; i < amount; i++) {
+            buf[offset + i] = buffer[head];
+            head = (head + 1) % capacity;
+        }
+        count -= amount;
+
+        if (amount > 0)
+            spaceAvailable.wakeAll();
+
+        lock.release();
+        return amount;
+    }
+
+    private int write(byte[] buf, int offset, int length) {
+        lock.acquire();
+
+        int written = 0;
+        while (written < length) {
+            while (count == capacity && readerOpen)
+                spaceAvailable.sleep();
+
+            if (!readerOpen)
+                break;
+
+            int amount = Math.min(length - written, capacity - count);
+            for (int i = 0; i < amount; i++)
+                buffer[(head + count + i) % capacity] = buf[offset + written + i];
+            count += amount;
+            written += amount;
+
+            dataAvailable.wakeAll();
+        }
+
+        lock.release();
+        return readerOpen ? written : -1;
+    }
+
+    private void close(boolean reader) {
+        lock.acquire();
+
+        if (reader)
+            readerOpen = false;
+        else
+            writerOpen = false;
+
+        dataAvailable.wakeAll();
+        spaceAvailable.wakeAll();
+
+        lock.release();
+    }
+
+    private class End extends OpenFile {
+        End(boolean reader) {
+            super(null, "pipe");
+
+            this.reader = reader;
+        }
+
+        public void close() {
+            if (open) {
+                open = false;
+                Pipe.this.close(reader);
+            }
+        }
+
+        public int read(byte[] buf, int offset, int length) {
+            if (!reader || !open)
+                return -1;
+
+            return Pipe.this.read(buf, offset, length);
+        }
+
+        public int write(byte[] buf, int offset, int length) {
+            if (reader || !open)
+                return -1;
+
+            return Pipe.this.write(buf, offset, length);
+        }
+
+        private boolean reader;
+        private boolean open = true;
+    }
+
+    /**
+     * The number of bytes a pipe can hold before writers block.
+     */
+    public static final int capacity = 4 * Processor.pageSize;
+
+    private byte[] buffer = new byte[capacity];
+    private int head = 0;
+    private int count = 0;
+
+    private boolean readerOpen = true;
+    private boolean writerOpen = true;
+
+    private Lock lock = new Lock();
+    private Condition2 dataAvailable = new Condition2(lock);
+    private Condition2 spaceAvailable = new Condition2(lock);
+
+    private End readEnd = new End(true);
+    private End writeEnd = new End(false);
+}
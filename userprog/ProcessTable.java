@@ -0,0 +1,179 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Iterator;
+
+/**
+ * The kernel's table of user processes, indexed by process ID.
+ *
+ * <p>
+ * Lookup by PID is a single array access. Freed PIDs are kept on a stack and
+ * handed out again before the table grows, so the table never holds more
+ * slots than the largest number of processes that existed at once. A process
+ * that exits stays in the table as a <i>zombie</i> until its parent joins it,
+ * or is released right away if it no longer has a parent.
+ *
+ * <p>
+ * All state is guarded by a single lock, and each process has a condition
+ * variable on that lock on which it waits for its children to exit.
+ */
+public class ProcessTable {
+    /**
+     * Allocate a new, empty process table.
+     */
+    public ProcessTable() {
+        processes = new UserProcess[initialSize];
+        freePids = new int[initialSize];
+        for (int pid = initialSize - 1; pid >= 0; pid--)
+            freePids[numFree++] = pid;
+    }
+
+    /**
+     * Add a process to the table and assign it a PID. The first process added
+     * receives PID 0, which is never reused.
+     *
+     * @param process the new process.
+     * @param parent  the process that created it, or <tt>null</tt>.
+     * @return the PID assigned to the process.
+     */
+    public int add(UserProcess process, UserProcess parent) {
+        lock.acquire();
+
+        if (numFree == 0)
+            grow();
+        int pid = freePids[--numFree];
+
+        processes[pid] = process;
+        process.pid = pid;
+        process.parentProc = parent;
+        process.childExited = new Condition2(lock);
+        if (parent != null)
+            parent.children.add(process);
+        numAlive++;
+
+        lock.release();
+        return pid;
+    }
+
+    /**
+     * Return the process with the specified PID.
+     *
+     * @param pid the PID to look up.
+     * @return the process, or <tt>null</tt> if no process has that PID.
+     */
+    public UserProcess get(int pid) {
+        if (pid < 0 || pid >= processes.length)
+            return null;
+        return processes[pid];
+    }
+
+    /**
+     * Record that a process has exited. Its parent, if any, is woken up, and
+     * its children are disowned; those that have already exited are released.
+     *
+     * @param process    the exiting process.
+     * @param status     the exit status to report to the parent.
+     * @param normalExit 1 if the process called <tt>exit()</tt>, 0 if it was
+     *                   killed by an exception.
+     * @return the number of processes that are still running.
+     */
+    public int exit(UserProcess process, int status, int normalExit) {
+        lock.acquire();
+
+        process.exitStatus = status;
+        process.normalExit = normalExit;
+        process.zombie = true;
+
+        for (Iterator<UserProcess> i = process.children.iterator(); i.hasNext(); ) {
+            UserProcess child = i.next();
+            child.parentProc = null;
+            if (child.zombie)
+                release(child);
+        }
+        process.children.clear();
+        process.exitedChildren.clear();
+
+        UserProcess parent = process.parentProc;
+        if (parent == null) {
+            release(process);
+        }
+        else {
+            parent.exitedChildren.add(process);
+            parent.childExited.wakeAll();
+        }
+
+        int stillAlive = --numAlive;
+
+        lock.release();
+        return stillAlive;
+    }
+
+    /**
+     * Wait for a child of <i>parent</i> to exit, and release its PID. If
+     * <i>pid</i> is -1, waits for whichever child exits first.
+     *
+     * @param parent the joining process.
+     * @param pid    the PID of the child to join, or -1 for any child.
+     * @return the child that was joined, or <tt>null</tt> if <i>pid</i> is not
+     * a child of <i>parent</i>, or if <i>pid</i> is -1 and <i>parent</i> has no
+     * children.
+     */
+    public UserProcess join(UserProcess parent, int pid) {
+        lock.acquire();
+
+        UserProcess child;
+        if (pid == -1) {
+            if (parent.children.isEmpty()) {
+                lock.release();
+                return null;
+            }
+            while (parent.exitedChildren.isEmpty())
+                parent.childExited.sleep();
+            child = parent.exitedChildren.iterator().next();
+        }
+        else {
+            child = get(pid);
+            if (child == null || child.parentProc != parent) {
+                lock.release();
+                return null;
+            }
+            while (!child.zombie)
+                parent.childExited.sleep();
+        }
+
+        parent.children.remove(child);
+        parent.exitedChildren.remove(child);
+        release(child);
+
+        lock.release();
+        return child;
+    }
+
+    private void release(UserProcess process) {
+        int pid = process.pid;
+        processes[pid] = null;
+        if (pid != 0)
+            freePids[numFree++] = pid;
+    }
+
+    private void grow() {
+        int oldSize = processes.length;
+        UserProcess[] newProcesses = new UserProcess[oldSize * 2];
+        System.arraycopy(processes, 0, newProcesses, 0, oldSize);
+        processes = newProcesses;
+
+        freePids = new int[oldSize * 2];
+        for (int pid = oldSize * 2 - 1; pid >= oldSize; pid--)
+            freePids[numFree++] = pid;
+    }
+
+    private static final int initialSize = 16;
+
+    private UserProcess[] processes;
+    private int[] freePids;
+    private int numFree = 0;
+    private int numAlive = 0;
+    private Lock lock = new Lock();
+}
@@ -0,0 +1,176 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.io.PrintStream;
+
+/**
+ * Counts and latency histograms for system calls, kept per syscall number.
+ *
+ * <p>
+ * Latencies are measured in simulated ticks, from the syscall trap until the
+ * handler returns, and so include any time spent blocked. Each histogram has
+ * a fixed set of power-of-two buckets: bucket 0 counts calls that took no
+ * time, and bucket <i>b</i> counts calls that took at least
+ * 2<sup><i>b</i>-1</sup> and fewer than 2<sup><i>b</i></sup> ticks, with the
+ * last bucket also counting anything longer. All storage is allocated up
+ * front, so recording a call never allocates.
+ *
+ * <p>
+ * Recording does not block or enable interrupts, so it cannot be interrupted
+ * by another Nachos thread and needs no lock.
+ */
+public class SyscallStats {
+    /**
+     * Allocate a new, empty set of statistics.
+     *
+     * @param name the name to print these statistics under, such as the
+     *             process they belong to.
+     */
+    public SyscallStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Record one call of a syscall.
+     *
+     * @param syscall the syscall number.
+     * @param ticks   how long the call took, in ticks.
+     */
+    public void record(int syscall, long ticks) {
+        if (syscall < 0 || syscall >= maxSyscalls)
+            return;
+
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(ticks), numBuckets - 1);
+
+        counts[syscall]++;
+        totalTicks[syscall] += ticks;
+        maxTicks[syscall] = Math.max(maxTicks[syscall], ticks);
+        histograms[syscall][bucket]++;
+    }
+
+    /**
+     * Return the number of times a syscall has been recorded.
+     *
+     * @param syscall the syscall number.
+     * @return the number of calls.
+     */
+    public long getCount(int syscall) {
+        return counts[syscall];
+    }
+
+    /**
+     * Return the total number of ticks spent in a syscall.
+     *
+     * @param syscall the syscall number.
+     * @return the total latency of all calls.
+     */
+    public long getTotalTicks(int syscall) {
+        return totalTicks[syscall];
+    }
+
+    /**
+     * Print these statistics in the specified format: <tt>text</tt>,
+     * <tt>csv</tt> or <tt>json</tt>. Syscalls that were never called are left
+     * out.
+     *
+     * @param format the output format.
+     * @param out    the stream to print to.
+     */
+    public void print(String format, PrintStream out) {
+        if (format.equals("csv"))
+            printCSV(out);
+        else if (format.equals("json"))
+            printJSON(out);
+        else
+            printText(out);
+    }
+
+    private void printText(PrintStream out) {
+        out.println("Syscalls (" + name + "):");
+        for (int i = 0; i < maxSyscalls; i++) {
+            if (counts[i] == 0)
+                continue;
+
+            out.print("  " + syscallName(i) + ": calls " + counts[i]
+                + ", ticks " + totalTicks[i]
+                + ", mean " + totalTicks[i] / counts[i]
+                + ", max " + maxTicks[i] + ", histogram");
+            for (int b = 0; b < numBuckets; b++) {
+                if (histograms[i][b] != 0)
+                    out.print(" <" + bucketLimit(b) + ":" + histograms[i][b]);
+            }
+            out.println();
+        }
+    }
+
+    private void printCSV(PrintStream out) {
+        out.print("scope,syscall,calls,ticks,max");
+        for (int b = 0; b < numBuckets; b++)
+            out.print(",lt" + bucketLimit(b));
+        out.println();
+
+        for (int i = 0; i < maxSyscalls; i++) {
+            if (counts[i] == 0)
+                continue;
+
+            out.print(name + "," + syscallName(i) + "," + counts[i] + ","
+                + totalTicks[i] + "," + maxTicks[i]);
+            for (int b = 0; b < numBuckets; b++)
+                out.print("," + histograms[i][b]);
+            out.println();
+        }
+    }
+
+    private void printJSON(PrintStream out) {
+        out.print("{\"scope\":\"" + name + "\",\"syscalls\":[");
+        boolean first = true;
+        for (int i = 0; i < maxSyscalls; i++) {
+            if (counts[i] == 0)
+                continue;
+
+            if (!first)
+                out.print(",");
+            first = false;
+
+            out.print("{\"syscall\":\"" + syscallName(i) + "\",\"calls\":"
+                + counts[i] + ",\"ticks\":" + totalTicks[i] + ",\"max\":"
+                + maxTicks[i] + ",\"histogram\":[");
+            for (int b = 0; b < numBuckets; b++)
+                out.print((b == 0 ? "" : ",") + histograms[i][b]);
+            out.print("]}");
+        }
+        out.println("]}");
+    }
+
+    /**
+     * Return the exclusive upper limit of a histogram bucket, in ticks; the
+     * last bucket is unbounded, but is labelled as if it were not.
+     */
+    private static long bucketLimit(int bucket) {
+        return 1L << bucket;
+    }
+
+    private static String syscallName(int syscall) {
+        if (syscall < UserProcess.syscallNames.length
+            && UserProcess.syscallNames[syscall] != null)
+            return UserProcess.syscallNames[syscall];
+        return "syscall" + syscall;
+    }
+
+    /**
+     * The number of syscall numbers statistics are kept for.
+     */
+    public static final int maxSyscalls = 32;
+
+    /**
+     * The number of buckets in each latency histogram.
+     */
+    public static final int numBuckets = 24;
+
+    private String name;
+    private long[] counts = new long[maxSyscalls];
+    private long[] totalTicks = new long[maxSyscalls];
+    private long[] maxTicks = new long[maxSyscalls];
+    private long[][] histograms = new long[maxSyscalls][numBuckets];
+}
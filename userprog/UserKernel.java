@@ -1,6 +1,4 @@
 package nachos.userprog;
-import java.util.Collections;
-import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.threads.*;
 
@@ -9,11 +7,6 @@ import nachos.threads.*;
  * A kernel that can support multiple user processes.
  */
 public class UserKernel extends ThreadedKernel {
-    public static Lock pageLock;
-
-    public static LinkedList<Integer> freePages;
-    
-    static int pid = 0;
     /**
      * Allocate a new user kernel.
      */
@@ -29,11 +22,10 @@ public class UserKernel extends ThreadedKernel {
         super.initialize(args);
 
         console = new SynchConsole(Machine.console());
-        pageLock = new Lock();
-        freePages = new LinkedList<>();
-        for (int i = 0; i < Machine.processor().getNumPhysPages(); i++){
-                freePages.add(i);
-        }
+        processTable = new ProcessTable();
+        syscallStats = new SyscallStats("kernel");
+        frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
+        zeroPage = new ZeroPage(frameAllocator);
         Machine.processor().setExceptionHandler(new Runnable() {
             public void run() {
                 exceptionHandler();
@@ -47,6 +39,9 @@ public class UserKernel extends ThreadedKernel {
     public void selfTest() {
         super.selfTest();
 
+        FrameAllocator.selfTest();
+        Pipe.selfTest();
+
 //        System.out.println("\n\nTesting the console device. Typed characters");
 //        System.out.println("will be echoed until q is typed.");
 //
@@ -104,6 +99,8 @@ public class UserKernel extends ThreadedKernel {
     public void run() {
         super.run();
 
+        frameAllocator.startZeroingDaemon();
+
         UserProcess process = UserProcess.newUserProcess();
 
         String shellProgram = Machine.getShellProgramName();
@@ -112,31 +109,105 @@ public class UserKernel extends ThreadedKernel {
         KThread.currentThread().finish();
     }
 
+    /**
+     * Terminate the running kernel, which prints its statistics and halts the
+     * machine. Never returns.
+     */
+    public static void halt() {
+        Kernel.kernel.terminate();
+    }
+
+    /**
+     * Print the kernel's statistics just before the machine halts: syscall
+     * statistics if enabled, and memory statistics if the <tt>f</tt> debug
+     * flag is set.
+     */
+    protected void printStatistics() {
+        printSyscallStats(syscallStats);
+        if (Lib.test(dbgFrames)) {
+            frameAllocator.print();
+            zeroPage.print();
+        }
+    }
+
+    /**
+     * Print a set of syscall statistics in the format selected by the
+     * <tt>UserKernel.syscallStats</tt> key, which may be <tt>none</tt> (the
+     * default), <tt>text</tt>, <tt>csv</tt> or <tt>json</tt>.
+     *
+     * @param stats the statistics to print.
+     */
+    public static void printSyscallStats(SyscallStats stats) {
+        if (!syscallStatsFormat.equals("none"))
+            stats.print(syscallStatsFormat, System.out);
+    }
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        printStatistics();
         super.terminate();
     }
+
+    /**
+     * Allocate a frame of physical memory.
+     *
+     * @return the frame number, or -1 if physical memory is exhausted.
+     */
     public static int allocatePage() {
-        pageLock.acquire();
-        int page = freePages.removeLast();
-        pageLock.release();
-        return page;
+        return frameAllocator.allocate();
     }
 
-    public static void freePage(int in) {
-        pageLock.acquire();
-        freePages.add(in);
-        pageLock.release();
+    /**
+     * Return a frame of physical memory to the free pool.
+     *
+     * @param ppn the frame to free.
+     */
+    public static void freePage(int ppn) {
+        frameAllocator.free(ppn);
     }
-    
 
     /**
      * Globally accessible reference to the synchronized console.
      */
     public static SynchConsole console;
 
+    /**
+     * Globally accessible reference to the table of running processes.
+     */
+    public static ProcessTable processTable;
+
+    /**
+     * Syscall counts and latencies for all processes together.
+     */
+    public static SyscallStats syscallStats;
+
+    private static final String syscallStatsFormat =
+        Config.getString("UserKernel.syscallStats", "none");
+
+    /**
+     * Whether each process prints its own syscall statistics when it exits,
+     * set by the <tt>UserKernel.perProcessSyscallStats</tt> key.
+     */
+    public static final boolean perProcessSyscallStats =
+        Config.getBoolean("UserKernel.perProcessSyscallStats", false);
+
+    /**
+     * Globally accessible reference to the physical frame allocator.
+     */
+    public static FrameAllocator frameAllocator;
+
+    /**
+     * Globally accessible reference to the shared page of zeros.
+     */
+    public static ZeroPage zeroPage;
+
+    /**
+     * The debug flag that enables memory statistics.
+     */
+    protected static final char dbgFrames = 'f';
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
@@ -5,7 +5,8 @@ import nachos.threads.*;
 
 
 import java.io.EOFException;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.Collections;
 
@@ -54,10 +55,8 @@ public class UserProcess {
         if (!load(name, args))
             return false;
 
-        boolean intStatus = Machine.interrupt().disable();
-        pid = pidCounter++;
-        numAlive++;
-        Machine.interrupt().restore(intStatus);
+        UserKernel.processTable.add(this, parentProc);
+        syscallStats = new SyscallStats("pid " + pid);
 
         new UThread(this).setName(name).fork();
 
@@ -76,7 +75,8 @@ public class UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-        Machine.processor().setPageTable(pageTable);
+        if (pageTable != null)
+            pageTable.attach();
     }
 
     /**
@@ -135,42 +135,28 @@ public class UserProcess {
      * @return the number of bytes successfully transferred. -1 in event of an error.
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-        if (!(offset >= 0 && length >= 0 && offset + length <= data.length)) {
-//            System.out.println((offset >= 0 && length >= 0) + " : " + (offset + length <= data.length));
-//            System.out.println("First thing failed: " + offset + ", " + length + ", " + (offset + length) + ", " + data.length);
+        if (!(offset >= 0 && length >= 0 && offset + length <= data.length))
             return 0;
-        }
 
         byte[] memory = Machine.processor().getMemory();
 
-        // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0)
             return 0;
 
-        int amount = Math.min(length, memory.length - vaddr);
         int rData = 0;
-
-        for (int i = 0; i < amount; i++){
-            int vpn = vaddr + i;
-            TranslationEntry checkEntry;
-            try {
-                checkEntry = pageTable[vpn / Machine.processor().pageSize];
-            } catch (IndexOutOfBoundsException e) {
+        while (rData < length) {
+            int addr = vaddr + rData;
+            int ppn = lookupPage(Processor.pageFromAddress(addr), false);
+            if (ppn == -1)
                 break;
-            }
 
-            if (checkEntry == null || !checkEntry.valid){
-                break;
-            }
-            checkEntry.used = true;
-            int ppn =  ((checkEntry.ppn * Machine.processor().pageSize) + (vpn % Machine.processor().pageSize));
-            data[i + offset] = memory[ppn];
-            rData++;
+            int pageOffset = Processor.offsetFromAddress(addr);
+            int amount = Math.min(length - rData, pageSize - pageOffset);
+            System.arraycopy(memory, ppn * pageSize + pageOffset,
+                data, offset + rData, amount);
+            rData += amount;
         }
 
-
-        //System.arraycopy(memory, vaddr, data, offset, amount);
-
         return rData;
     }
 
@@ -207,31 +193,156 @@ public class UserProcess {
 
         byte[] memory = Machine.processor().getMemory();
 
-        // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0)
             return 0;
 
-        int amount = Math.min(length, memory.length - vaddr);
         int wData = 0;
-
-	    for (int i = 0; i < amount; i++){
-            int vpn = vaddr + i;
-           
-                TranslationEntry checkEntry = pageTable[vpn/Machine.processor().pageSize];
-            
-            if (!checkEntry.valid || checkEntry == null){
+        while (wData < length) {
+            int addr = vaddr + wData;
+            int ppn = lookupPage(Processor.pageFromAddress(addr), true);
+            if (ppn == -1)
                 break;
-            }
-            checkEntry.used = true;
-            int ppn =  ((checkEntry.ppn * Machine.processor().pageSize) + (vpn % Machine.processor().pageSize));
-            memory[ppn] = data[i + offset];
-		    wData++;
+
+            int pageOffset = Processor.offsetFromAddress(addr);
+            int amount = Math.min(length - wData, pageSize - pageOffset);
+            System.arraycopy(data, offset + wData, memory,
+                ppn * pageSize + pageOffset, amount);
+            wData += amount;
         }
-        //System.arraycopy(data, offset, memory, vaddr, amount);
 
         return wData;
     }
 
+    /**
+     * Return the physical page the specified virtual page is mapped to on
+     * behalf of the kernel, faulting the page in first if it is not yet
+     * mapped, and giving it a private frame first if it shares the page of
+     * zeros and <i>writing</i> is set. Sets the page's used bit, and its
+     * dirty bit if <i>writing</i>.
+     *
+     * @param vpn     the virtual page to look up.
+     * @param writing <tt>true</tt> if the kernel is about to write the page.
+     * @return the page's frame, or -1 if the page is not part of the address
+     * space or is read-only and <i>writing</i> is set.
+     */
+    protected int lookupPage(int vpn, boolean writing) {
+        if (vpn < 0 || vpn >= numPages)
+            return -1;
+
+        // a subclass may replace the page again before the fault handler
+        // returns, so keep faulting until the page is there
+        boolean valid;
+        while (!(valid = pageTable.isSet(vpn, PageTable.flagValid))
+            || (writing && UserKernel.zeroPage.isMapped(pageTable, vpn))) {
+            boolean handled = !valid
+                ? handlePageFault(vpn) : handleZeroPageWrite(vpn);
+            if (!handled)
+                return -1;
+        }
+
+        if (writing && pageTable.isSet(vpn, PageTable.flagReadOnly))
+            return -1;
+
+        pageTable.setFlags(vpn, writing
+            ? PageTable.flagUsed | PageTable.flagDirty : PageTable.flagUsed);
+        return pageTable.getPPN(vpn);
+    }
+
+    /**
+     * Map a page that has not been touched yet. Pages in the heap below the
+     * current break, and stack pages a short distance below the lowest page
+     * the stack has touched so far, share the page of zeros until they are
+     * first written; any other address is an invalid access.
+     *
+     * @param vpn the virtual page that faulted.
+     * @return <tt>true</tt> if the page is now mapped.
+     */
+    protected boolean handlePageFault(int vpn) {
+        if (!claimDemandZeroPage(vpn))
+            return false;
+
+        UserKernel.zeroPage.map(pageTable, vpn);
+        Lib.debug(dbgProcess, "\tmapped page " + vpn + " to the zero page");
+        return true;
+    }
+
+    /**
+     * Give a page that shares the page of zeros a private zero-filled frame,
+     * so that it can be written.
+     *
+     * @param vpn the virtual page being written.
+     * @return <tt>true</tt> if the page now has a private frame.
+     */
+    protected boolean handleZeroPageWrite(int vpn) {
+        int ppn = frameMagazine.allocateZeroed();
+        if (ppn == -1) {
+            Lib.debug(dbgProcess, "\tout of physical memory");
+            return false;
+        }
+
+        // another thread of this process may have done this while we waited
+        // for a frame
+        if (!UserKernel.zeroPage.isMapped(pageTable, vpn)) {
+            frameMagazine.free(ppn);
+            return true;
+        }
+
+        UserKernel.zeroPage.unshare(pageTable, vpn, ppn);
+        Lib.debug(dbgProcess, "\tgave page " + vpn + " a private frame");
+        return true;
+    }
+
+    /**
+     * Decide whether a fault on the specified page should map a fresh page of
+     * zeros: a heap page below the current break, or a stack page within a
+     * short distance of the lowest page the stack has touched so far. Claiming
+     * a stack page grows the stack down to that page, so this is only called
+     * for a page that is about to be mapped.
+     *
+     * @param vpn the virtual page that faulted.
+     * @return <tt>true</tt> if the page is part of the heap or stack.
+     */
+    protected boolean claimDemandZeroPage(int vpn) {
+        if (vpn >= heapStartVPN && vpn < Lib.divRoundUp(brk, pageSize))
+            return true;
+
+        if (vpn >= stackLimitVPN && vpn < argsVPN
+            && vpn >= stackBottomVPN - stackGrowthPages) {
+            stackBottomVPN = Math.min(stackBottomVPN, vpn);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return whether a page may hold anything other than zeros: it has a
+     * private frame, or a copy in swap.
+     *
+     * @param vpn the virtual page.
+     * @return <tt>true</tt> if the page has been written.
+     */
+    private boolean hasContents(int vpn) {
+        if (pageTable.getSwapSlot(vpn) != -1)
+            return true;
+        return pageTable.isSet(vpn, PageTable.flagValid)
+            && !UserKernel.zeroPage.isMapped(pageTable, vpn);
+    }
+
+    /**
+     * Unmap a page and release its frame, if it has one.
+     *
+     * @param vpn the virtual page to release.
+     */
+    protected void releasePage(int vpn) {
+        boolean owned = pageTable.isSet(vpn, PageTable.flagValid)
+            && !UserKernel.zeroPage.isMapped(pageTable, vpn);
+        int ppn = pageTable.getPPN(vpn);
+        pageTable.remove(vpn);
+        if (owned)
+            frameMagazine.free(ppn);
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -288,11 +399,20 @@ public class UserProcess {
         // program counter initially points at the program entry point
         initialPC = coff.getEntryPoint();
 
-        // next comes the stack; stack pointer initially points to top of it
-        numPages += stackPages;
+        // next comes the heap, which starts out empty and grows up with sbrk()
+        heapStartVPN = numPages;
+        brk = heapStartVPN * pageSize;
+        numPages += maxHeapPages;
+
+        // then the stack, which grows down from the top of its reservation
+        // as it faults; stack pointer initially points to top of it
+        stackLimitVPN = numPages;
+        numPages += maxStackPages;
         initialSP = numPages * pageSize;
+        stackBottomVPN = numPages;
 
         // and finally reserve 1 page for arguments
+        argsVPN = numPages;
         numPages++;
 
         if (!loadSections())
@@ -327,18 +447,41 @@ public class UserProcess {
      * @return <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-        if (numPages > Machine.processor().getNumPhysPages()) {
+        // only the initialized sections and the argument page are given
+        // frames up front; uninitialized sections share the page of zeros,
+        // and the heap and stack are mapped as they are touched
+        int numLoaded = 0;
+        for (int s = 0; s < coff.getNumSections(); s++) {
+            CoffSection section = coff.getSection(s);
+            if (!sharesZeroPage(section))
+                numLoaded += section.getLength();
+        }
+
+        if (numLoaded + 1 > Machine.processor().getNumPhysPages()) {
             coff.close();
             Lib.debug(dbgProcess, "\tinsufficient physical memory");
             return false;
         }
 
-        pageTable = new TranslationEntry[numPages];
-        for (int i= 0; i < numPages; i++){
-            pageTable[i] = new TranslationEntry(i, UserKernel.allocatePage(), true, false, false, false);
+        // the loader overwrites every byte of a section's pages, but the
+        // argument page is only partly written and must not show whatever
+        // its frame held before
+        int[] frames = new int[numLoaded + 1];
+        int allocated = UserKernel.frameAllocator.allocate(frames, numLoaded);
+        if (allocated == numLoaded)
+            frames[allocated] = UserKernel.frameAllocator.allocateZeroed();
+        if (allocated < numLoaded || frames[allocated] == -1) {
+            UserKernel.frameAllocator.free(frames, allocated);
+            coff.close();
+            Lib.debug(dbgProcess, "\tinsufficient physical memory");
+            return false;
         }
 
+        pageTable = new PageTable(numPages);
+        pageTable.set(argsVPN, frames[numLoaded], PageTable.flagValid);
+
         // load sections
+        int nextFrame = 0;
         for (int s = 0; s < coff.getNumSections(); s++) {
             CoffSection section = coff.getSection(s);
 
@@ -348,25 +491,51 @@ public class UserProcess {
             for (int i = 0; i < section.getLength(); i++) {
                 int vpn = section.getFirstVPN() + i;
 
-                // for now, just assume virtual addresses=physical addresses
-                // section.loadPage(i, vpn);
-                TranslationEntry ploc = pageTable[vpn];
-                ploc.readOnly = section.isReadOnly();
-                section.loadPage(i, ploc.ppn);
+                if (sharesZeroPage(section)) {
+                    UserKernel.zeroPage.map(pageTable, vpn);
+                    continue;
+                }
+
+                int ppn = frames[nextFrame++];
+                pageTable.set(vpn, ppn, section.isReadOnly()
+                    ? PageTable.flagValid | PageTable.flagReadOnly
+                    : PageTable.flagValid);
+                section.loadPage(i, ppn);
             }
         }
 
         return true;
     }
 
+    /**
+     * Return whether the pages of a section start out sharing the page of
+     * zeros: the section is writable and has no initialized data.
+     *
+     * @param section the section.
+     * @return <tt>true</tt> if the section's pages share the page of zeros.
+     */
+    protected static boolean sharesZeroPage(CoffSection section) {
+        return !section.isInitialzed() && !section.isReadOnly();
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-        for(int i =0; i < numPages; i++){
-            UserKernel.freePage(pageTable[i].ppn);
-            pageTable[i].valid = false;
-        }    
+        // hand every frame back in one batch instead of one at a time
+        int[] frames = new int[pageTable.getNumMapped()];
+        int numFrames = 0;
+        for (int vpn = pageTable.nextMapped(0); vpn != -1;
+             vpn = pageTable.nextMapped(vpn + 1)) {
+            if (pageTable.isSet(vpn, PageTable.flagValid)
+                && !UserKernel.zeroPage.isMapped(pageTable, vpn))
+                frames[numFrames++] = pageTable.getPPN(vpn);
+            pageTable.remove(vpn);
+        }
+        UserKernel.frameAllocator.free(frames, numFrames);
+        frameMagazine.drain();
+
+        coff.close();
     }
 
     /**
@@ -399,7 +568,7 @@ public class UserProcess {
         if (this.pid != 0)
             return -1;
 
-        Machine.halt();
+        UserKernel.halt();
 
         Lib.assertNotReached("Machine.halt() did not halt machine!");
         return 0;
@@ -433,9 +602,9 @@ public class UserProcess {
 
     int handleRead(int desc, int buffer, int count) {
         //return -1 if any invalid values are inputted
-        if (desc >= openFiles.length || desc < 0 || buffer < 0)
+        if (buffer < 0)
             return -1;
-        OpenFile openFile = openFiles[desc].file;
+        OpenFile openFile = getOpenFile(desc);
         if (openFile == null)
             return -1;
 
@@ -446,8 +615,7 @@ public class UserProcess {
         int startingPos = buffer;
         int readCount = count;
         int fileLength = openFile.length();
-        
-        System.out.println("fileLength: " + openFile.length());
+
 
         while (readCount != 0 && fileLength != 0) {
 //            System.out.println(readCount);
@@ -455,9 +623,12 @@ public class UserProcess {
 //            System.out.println(numToRead);
             int read = openFile.read(Buffer, 0, numToRead);
 //            System.out.println(read);
+            //a file that cannot be read, like the write end of a pipe
+            if (read < 0)
+                return -1;
             int write = writeVirtualMemory(startingPos, Buffer, 0, read);
 
-            if (read < 0 || read != write)
+            if (read != write)
                 return -1;
 
             numReadBytes += read;
@@ -465,7 +636,9 @@ public class UserProcess {
             openFiles[desc].readOffset += read;
             readCount -= read;
             fileLength -= read;
-            if (read == 0)
+            //a short read means end of file, or that a stream has no more
+            //data for now; don't block waiting for the rest
+            if (read < numToRead)
                 break;
         }
 
@@ -475,9 +648,9 @@ public class UserProcess {
     int handleWrite(int desc, int buffer, int count) {
 //        System.out.println("handleWrite: " + desc + ", " + buffer + ", " + count);
         //return -1 if any invalid values are inputted
-        if (desc >= openFiles.length || desc < 0 || buffer < 0)
+        if (buffer < 0)
             return -1;
-        OpenFile openFile = openFiles[desc].file;
+        OpenFile openFile = getOpenFile(desc);
         if (openFile == null) {
 //            System.out.println("file is null!");
             return -1;
@@ -517,11 +690,26 @@ public class UserProcess {
         return count;
     }
 
+    /**
+     * Return the file referred to by the specified file descriptor.
+     *
+     * @param desc the file descriptor.
+     * @return the open file, or <tt>null</tt> if <i>desc</i> is not open.
+     */
+    OpenFile getOpenFile(int desc) {
+        if (desc >= openFiles.length || desc < 0 || openFiles[desc] == null)
+            return null;
+        return openFiles[desc].file;
+    }
+
     int insertFileTable(OpenFile openFile) {
         if (openFile != null) {
             for (int i = 0; i < openFiles.length; ++i) {
                 if (openFiles[i] == null) {
                     openFiles[i] = new FileTriple(openFile, 0, 0);
+                    //only files in the file system can be unlinked while open
+                    if (!isFileSystemFile(openFile))
+                        return i;
                     if (checkOpen(openFile.getName(), false))
                         incrementInstances(openFile);
                     else {
@@ -540,12 +728,88 @@ public class UserProcess {
     int handleClose(int desc) {
         if (desc >= openFiles.length || desc < 0 || openFiles[desc] == null)
             return -1;
-        decrementInstances(openFiles[desc].file, desc);
-        openFiles[desc].file.close();
+        FileTriple fileTriple = openFiles[desc];
         openFiles[desc] = null;
+        releaseFile(fileTriple);
         return 0;
     }
 
+    /**
+     * Return the open file a file descriptor refers to, and take a reference
+     * on it so that it stays open if the descriptor is closed or reused. The
+     * reference must be given back with <tt>releaseFile()</tt>.
+     *
+     * @param desc the file descriptor.
+     * @return the open file, or <tt>null</tt> if <i>desc</i> is not open.
+     */
+    FileTriple referenceFile(int desc) {
+        if (getOpenFile(desc) == null)
+            return null;
+        openFiles[desc].references++;
+        return openFiles[desc];
+    }
+
+    /**
+     * Drop a reference to an open file, closing the file if nothing else
+     * refers to it.
+     *
+     * @param fileTriple the open file.
+     */
+    void releaseFile(FileTriple fileTriple) {
+        //the file stays open until no descriptor in any process refers to it
+        if (--fileTriple.references > 0)
+            return;
+        if (isFileSystemFile(fileTriple.file))
+            decrementInstances(fileTriple.file, -1);
+        fileTriple.file.close();
+    }
+
+    /**
+     * Make a file descriptor of this process refer to the same open file, and
+     * the same file position, as a descriptor of another process. Any file
+     * <i>desc</i> referred to before is closed.
+     *
+     * @param desc       the file descriptor to set.
+     * @param fileTriple the open file to refer to, or <tt>null</tt> to leave
+     *                   <i>desc</i> closed.
+     */
+    void shareFile(int desc, FileTriple fileTriple) {
+        handleClose(desc);
+        if (fileTriple != null) {
+            fileTriple.references++;
+            openFiles[desc] = fileTriple;
+        }
+    }
+
+    private static boolean isFileSystemFile(OpenFile openFile) {
+        return openFile.getFileSystem() == ThreadedKernel.fileSystem;
+    }
+
+    private int handlePipe(int descsPtr) {
+        Pipe pipe = new Pipe();
+        int readDesc = insertFileTable(pipe.openForReading());
+        int writeDesc = insertFileTable(pipe.openForWriting());
+
+        byte[] descs = new byte[8];
+        Lib.bytesFromInt(descs, 0, readDesc);
+        Lib.bytesFromInt(descs, 4, writeDesc);
+        if (readDesc == -1 || writeDesc == -1
+            || writeVirtualMemory(descsPtr, descs) != descs.length) {
+            handleClose(readDesc);
+            handleClose(writeDesc);
+            return -1;
+        }
+        return 0;
+    }
+
+    private int handleDup2(int oldDesc, int newDesc) {
+        if (getOpenFile(oldDesc) == null || newDesc < 0 || newDesc >= openFiles.length)
+            return -1;
+        if (oldDesc != newDesc)
+            shareFile(newDesc, openFiles[oldDesc]);
+        return newDesc;
+    }
+
     int handleUnlink(int name) {
         //get the name of the file and ensure its length is 256 or less
         String Name = readVirtualMemoryString(name, 256);
@@ -563,23 +827,66 @@ public class UserProcess {
             return -1;
     }
 
-    private int handleExit(int exitValue, int normalExit) {
+    private int handleSbrk(int increment) {
+        int oldBrk = brk;
+        long newBrk = (long) brk + increment;
+        if (newBrk < heapStartVPN * pageSize || newBrk > stackLimitVPN * pageSize)
+            return -1;
+
+        // give back the frames of pages that are now entirely above the break
+        for (int vpn = Lib.divRoundUp((int) newBrk, pageSize);
+             vpn < Lib.divRoundUp(oldBrk, pageSize); vpn++)
+            releasePage(vpn);
+
+        // the rest of a page the break now ends in must also read as zeros if
+        // the break grows over it again
+        int lastVPN = (int) newBrk / pageSize;
+        if (newBrk < oldBrk && newBrk % pageSize != 0 && hasContents(lastVPN)) {
+            int end = Math.min((lastVPN + 1) * pageSize, oldBrk);
+            writeVirtualMemory((int) newBrk, new byte[end - (int) newBrk]);
+        }
+
+        brk = (int) newBrk;
+        return oldBrk;
+    }
+
+    private int handleIoSetup(int sqAddr, int cqAddr, int entries) {
+        if (ioRing != null || entries <= 0 || entries > IoRing.maxEntries)
+            return -1;
+
+        IoRing ring = new IoRing(this, sqAddr, cqAddr, entries);
+        if (!ring.initialize())
+            return -1;
+
+        IoRing.startWorkers();
+        ioRing = ring;
+        return 0;
+    }
+
+    private int handleIoSubmit(int count) {
+        if (ioRing == null || count < 0)
+            return -1;
+        return ioRing.submit(count);
+    }
+
+    private int handleIoWait(int minComplete) {
+        if (ioRing == null || minComplete < 0)
+            return -1;
+        return ioRing.waitForCompletions(minComplete);
+    }
+
+    protected int handleExit(int exitValue, int normalExit) {
+        if (ioRing != null)
+            ioRing.drain(); //workers may still be writing into our pages
         unloadSections();
         for (int i = 0; i < openFiles.length; i++)
             handleClose(i); //close all open files
-        if (parentProc != null) {
-            parentProc.infoSem.P();
-            Tuple4<UserProcess, Semaphore, Integer, Integer> info = parentProc.childInfo.get(this.pid);
-            info.third = exitValue;
-            info.fourth = normalExit;
-            info.second.V(); //wake up any procs joined to this one
-            parentProc.infoSem.V();
-        }
-        boolean intStatus = Machine.interrupt().disable();
-        int newNumAlive = --numAlive;
-        Machine.interrupt().restore(intStatus);
+        if (UserKernel.perProcessSyscallStats)
+            UserKernel.printSyscallStats(syscallStats);
+        //wakes up our parent if it is joined to us
+        int newNumAlive = UserKernel.processTable.exit(this, exitValue, normalExit);
         if (newNumAlive == 0) {
-            Machine.halt(); //last process kills system
+            UserKernel.halt(); //last process kills system
         } else {
             UThread.finish();
             //This should loop through all threads for the proc and finish them
@@ -604,31 +911,47 @@ public class UserProcess {
             if (argv[i] == null)
                 return -1;
         }
-        UserProcess child = new UserProcess();
+        UserProcess child = createChild();
         child.parentProc = this;
-        if (child.execute(name, argv)) {
-            infoSem.P();
-            childInfo.put(child.pid, new Tuple4<>(child, new Semaphore(0), -1, 0));
-            infoSem.V();
+        //the child reads and writes wherever we do, which lets a shell
+        //connect it to a pipe
+        child.shareFile(0, openFiles[0]);
+        child.shareFile(1, openFiles[1]);
+        if (child.execute(name, argv))
             return child.pid;
-        }
+        for (int i = 0; i < child.openFiles.length; i++)
+            child.handleClose(i);
         return -1;
     }
 
+    /**
+     * Allocate a process of the same kind as this one, to run a program this
+     * process has asked to <tt>exec()</tt>. Subclasses that support more than
+     * a plain <tt>UserProcess</tt> override this to return their own kind.
+     *
+     * <p>
+     * This is called from a user thread, so it cannot use reflection the way
+     * <tt>newUserProcess()</tt> does.
+     *
+     * @return a new process.
+     */
+    protected UserProcess createChild() {
+        return new UserProcess();
+    }
+
     private int handleJoin(int targetPID, int statusPtr) {
-        infoSem.P();
-        Tuple4<UserProcess, Semaphore, Integer, Integer> info = childInfo.get(targetPID); //Java's objects by reference
-        //means this always has the correct data
-        infoSem.V();
-        if (info == null)
+        if (targetPID < -1)
             return -1;
-        info.second.P(); //2nd position, semaphore
-        info.second.V(); //Info is only ever written to once so we
-        //don't actually need to keep the lock as all reads are safe now
-        byte[] exitValue = Lib.bytesFromInt(info.third); //3rd pos, exit value
+        //blocks until the child exits, then releases its pid
+        UserProcess child = UserKernel.processTable.join(this, targetPID);
+        if (child == null)
+            return -1;
+        byte[] exitValue = Lib.bytesFromInt(child.exitStatus);
         if (writeVirtualMemory(statusPtr, exitValue) < 4)
             return -1;
-        return info.fourth; //If the exit was normal or not
+        if (targetPID == -1)
+            return child.pid; //a wait-any join reports which child it reaped
+        return child.normalExit; //If the exit was normal or not
     }
 
     private static final int
@@ -641,7 +964,37 @@ public class UserProcess {
         syscallRead = 6,
         syscallWrite = 7,
         syscallClose = 8,
-        syscallUnlink = 9;
+        syscallUnlink = 9,
+        syscallIoSetup = 13,
+        syscallIoSubmit = 14,
+        syscallIoWait = 15,
+        syscallSbrk = 16,
+        syscallPipe = 17,
+        syscallDup2 = 18;
+
+    /**
+     * The names of the syscalls handled here, indexed by syscall number.
+     */
+    static final String[] syscallNames = new String[SyscallStats.maxSyscalls];
+
+    static {
+        syscallNames[syscallHalt] = "halt";
+        syscallNames[syscallExit] = "exit";
+        syscallNames[syscallExec] = "exec";
+        syscallNames[syscallJoin] = "join";
+        syscallNames[syscallCreat] = "creat";
+        syscallNames[syscallOpen] = "open";
+        syscallNames[syscallRead] = "read";
+        syscallNames[syscallWrite] = "write";
+        syscallNames[syscallClose] = "close";
+        syscallNames[syscallUnlink] = "unlink";
+        syscallNames[syscallIoSetup] = "iosetup";
+        syscallNames[syscallIoSubmit] = "iosubmit";
+        syscallNames[syscallIoWait] = "iowait";
+        syscallNames[syscallSbrk] = "sbrk";
+        syscallNames[syscallPipe] = "pipe";
+        syscallNames[syscallDup2] = "dup2";
+    }
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -662,6 +1015,13 @@ public class UserProcess {
      * 								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  iosetup(void *sq, void *cq, int entries);
+     * 								</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  iosubmit(int count);</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  iowait(int minComplete);</tt></td></tr>
+     * <tr><td>16</td><td><tt>void *sbrk(int increment);</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  pipe(int fds[2]);</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  dup2(int oldfd, int newfd);</tt></td></tr>
      * </table>
      *
      * @param syscall the syscall number.
@@ -674,41 +1034,10 @@ public class UserProcess {
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 //        System.out.println("Syscall: " + syscall);
         if (Lib.test('m') || Lib.test('M')) {
-            switch (syscall) {
-                case syscallHalt:
-                    System.out.println("Syscall: Halt");
-                    break;
-                case syscallExit:
-                    System.out.println("Syscall: Exit");
-                    break;
-                case syscallExec:
-                    System.out.println("Syscall: Exec");
-                    break;
-                case syscallJoin:
-                    System.out.println("Syscall: Join");
-                    break;
-                case syscallCreat:
-                    System.out.println("Syscall: Creat");
-                    break;
-                case syscallOpen:
-                    System.out.println("Syscall: Open");
-                    break;
-                case syscallRead:
-                    System.out.println("Syscall: Read");
-                    break;
-                case syscallWrite:
-                    System.out.println("Syscall: Write");
-                    break;
-                case syscallClose:
-                    System.out.println("Syscall: Close");
-                    break;
-                case syscallUnlink:
-                    System.out.println("Syscall: Unlink");
-                    break;
-            }
+            if (syscall >= 0 && syscall < syscallNames.length && syscallNames[syscall] != null)
+                System.out.println("Syscall: " + syscallNames[syscall]);
         }
 
-
         switch (syscall) {
             case syscallHalt:
                 return handleHalt();
@@ -730,6 +1059,18 @@ public class UserProcess {
                 return handleClose(a0);
             case syscallUnlink:
                 return handleUnlink(a0);
+            case syscallIoSetup:
+                return handleIoSetup(a0, a1, a2);
+            case syscallIoSubmit:
+                return handleIoSubmit(a0);
+            case syscallIoWait:
+                return handleIoWait(a0);
+            case syscallSbrk:
+                return handleSbrk(a0);
+            case syscallPipe:
+                return handlePipe(a0);
+            case syscallDup2:
+                return handleDup2(a0, a1);
 
             default:
                 Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -738,6 +1079,18 @@ public class UserProcess {
         return 0;
     }
 
+    /**
+     * Record a completed syscall in this process's statistics and in the
+     * kernel-wide statistics.
+     *
+     * @param syscall the syscall number.
+     * @param ticks   how long the syscall took.
+     */
+    protected void recordSyscall(int syscall, long ticks) {
+        syscallStats.record(syscall, ticks);
+        UserKernel.syscallStats.record(syscall, ticks);
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -751,19 +1104,36 @@ public class UserProcess {
 
         switch (cause) {
             case Processor.exceptionSyscall:
-                int result = handleSyscall(processor.readRegister(Processor.regV0),
+                int syscall = processor.readRegister(Processor.regV0);
+                //exit and halt may never return, so count them as they start,
+                //and only once if they do return (a halt refused with -1)
+                boolean counted = (syscall == syscallExit || syscall == syscallHalt);
+                if (counted)
+                    recordSyscall(syscall, 0);
+                long startTime = Machine.timer().getTime();
+                int result = handleSyscall(syscall,
                     processor.readRegister(Processor.regA0),
                     processor.readRegister(Processor.regA1),
                     processor.readRegister(Processor.regA2),
                     processor.readRegister(Processor.regA3)
                 );
+                if (!counted)
+                    recordSyscall(syscall, Machine.timer().getTime() - startTime);
                 processor.writeRegister(Processor.regV0, result);
                 processor.advancePC();
                 break;
             case Processor.exceptionPageFault:
+                int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+                if (handlePageFault(vpn))
+                    break; //retry the faulting instruction
                 Lib.debug(dbgProcess, "Handling page fault by killing proc");
                 handleExit(Processor.exceptionPageFault, 0);
             case Processor.exceptionReadOnly:
+                vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+                if (vpn >= 0 && vpn < numPages
+                    && UserKernel.zeroPage.isMapped(pageTable, vpn)
+                    && handleZeroPageWrite(vpn))
+                    break; //retry the faulting instruction
                 Lib.debug(dbgProcess, "Handling write to read only by killing proc");
                 handleExit(Processor.exceptionReadOnly, 0);
 
@@ -788,20 +1158,6 @@ public class UserProcess {
         return false;
     }
 
-    private static class Tuple4<A, B, C, D> {
-        A first;
-        B second;
-        C third;
-        D fourth;
-
-        Tuple4(A first, B second, C third, D fourth) {
-            this.first = first;
-            this.second = second;
-            this.third = third;
-            this.fourth = fourth;
-        }
-    }
-    
     public void incrementInstances (OpenFile openFile) {
         String name = openFile.getName();
         allOpenFilesSem.P();
@@ -815,14 +1171,16 @@ public class UserProcess {
     public void decrementInstances (OpenFile openFile, int desc) {
         String name = openFile.getName();
         allOpenFilesSem.P();
-        for (GlobalFileTriple fileTriple : allOpenFiles) {
-            if (fileTriple.fileName.equals(name))
-                --fileTriple.instances;
-            if (fileTriple.instances == 0) {
-                allOpenFiles.remove(fileTriple);
+        for (Iterator<GlobalFileTriple> i = allOpenFiles.iterator(); i.hasNext(); ) {
+            GlobalFileTriple fileTriple = i.next();
+            if (!fileTriple.fileName.equals(name))
+                continue;
+            if (--fileTriple.instances == 0) {
+                i.remove();
                 if (fileTriple.unlinkOnClose)
                     ThreadedKernel.fileSystem.remove(fileTriple.fileName);
             }
+            break;
         }
         allOpenFilesSem.V();
     }
@@ -833,29 +1191,73 @@ public class UserProcess {
     protected Coff coff;
 
     /**
-     * This process's page table.
+     * This process's page table, holding only the pages that are mapped.
      */
-    protected TranslationEntry[] pageTable;
+    protected PageTable pageTable;
+
     /**
-     * The number of contiguous pages occupied by the program.
+     * This process's cache of free frames, used for pages it maps on demand.
+     */
+    protected FrameMagazine frameMagazine =
+        new FrameMagazine(UserKernel.frameAllocator);
+    /**
+     * The number of pages spanned by the address space: the program, the
+     * heap and stack reservations, and the argument page.
      */
     protected int numPages;
 
     /**
-     * The number of pages in the program's stack.
+     * The largest number of pages the heap may grow to, set by the
+     * <tt>nachos.conf</tt> key <tt>UserProcess.maxHeapPages</tt>.
      */
-    protected final int stackPages = 8;
+    protected static final int maxHeapPages =
+        Config.getInteger("UserProcess.maxHeapPages", 256);
+
+    /**
+     * The largest number of pages the stack may grow to, set by the
+     * <tt>nachos.conf</tt> key <tt>UserProcess.maxStackPages</tt>.
+     */
+    protected static final int maxStackPages =
+        Config.getInteger("UserProcess.maxStackPages", 64);
+
+    /**
+     * How far below its lowest touched page the stack may fault and still be
+     * grown rather than treated as an invalid access.
+     */
+    protected static final int stackGrowthPages = 8;
+
+    /** The first page of the heap, just past the program's sections. */
+    protected int heapStartVPN;
+    /** The current program break; the heap ends just below this address. */
+    protected int brk;
+    /** The lowest page the stack may ever occupy. */
+    protected int stackLimitVPN;
+    /** The lowest page of the stack that has been touched so far. */
+    protected int stackBottomVPN;
+    /** The page holding the program's arguments, just above the stack. */
+    protected int argsVPN;
 
     private int initialPC, initialSP;
     private int argc, argv;
-    private int pid;
-    private static int pidCounter = 0;
-    private static int numAlive = 0;
-    private HashMap<Integer, Tuple4<UserProcess, Semaphore, Integer, Integer>> childInfo = new HashMap<>();
-    Semaphore infoSem = new Semaphore(1);
+
+    /*
+     * Process bookkeeping, guarded by the lock in UserKernel.processTable.
+     */
+    int pid;
     UserProcess parentProc;
+    LinkedHashSet<UserProcess> children = new LinkedHashSet<>();
+    LinkedHashSet<UserProcess> exitedChildren = new LinkedHashSet<>();
+    Condition2 childExited;
+    boolean zombie = false;
+    int exitStatus, normalExit;
 
     protected FileTriple[] openFiles;
+    private IoRing ioRing = null;
+
+    /**
+     * This process's syscall counts and latencies.
+     */
+    protected SyscallStats syscallStats;
     static protected LinkedList<GlobalFileTriple> allOpenFiles = new LinkedList<>();
     static protected Semaphore allOpenFilesSem = new Semaphore(1);
     
@@ -863,6 +1265,11 @@ public class UserProcess {
         protected OpenFile file;
         protected int writeOffset;
         protected int readOffset;
+        /**
+         * The number of file descriptors, in all processes, sharing this,
+         * plus the number of queued asynchronous requests using it.
+         */
+        protected int references = 1;
 
         FileTriple(OpenFile file, int writeOffset, int readOffset) {
             this.file = file;
@@ -0,0 +1,87 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A single frame of zeros, shared read-only by every page of every process
+ * that is supposed to start out zeroed and has not been written yet:
+ * untouched heap and stack pages, and pages of uninitialized sections. A
+ * process's first write to such a page raises a read-only exception, and
+ * the process then gives the page a private frame of its own. Pages that
+ * are only ever read therefore cost no memory, and a process's footprint is
+ * the pages it actually writes.
+ *
+ * <p>
+ * The frame is never freed, never replaced and never written.
+ */
+public class ZeroPage {
+    /**
+     * Take a frame from an allocator to be the shared page of zeros.
+     *
+     * @param allocator the allocator to take the frame from.
+     */
+    public ZeroPage(FrameAllocator allocator) {
+        ppn = allocator.allocateZeroed();
+        Lib.assertTrue(ppn != -1, "no frame for the zero page");
+    }
+
+    /**
+     * Map a virtual page of a page table, read-only, to the page of zeros.
+     *
+     * @param pageTable the page table.
+     * @param vpn       the virtual page.
+     */
+    public void map(PageTable pageTable, int vpn) {
+        numMapped++;
+        pageTable.set(vpn, ppn, PageTable.flagValid | PageTable.flagReadOnly);
+    }
+
+    /**
+     * Return whether a page table maps a virtual page to the page of zeros.
+     *
+     * @param pageTable the page table.
+     * @param vpn       the virtual page.
+     * @return <tt>true</tt> if the page still shares the page of zeros.
+     */
+    public boolean isMapped(PageTable pageTable, int vpn) {
+        return pageTable.isSet(vpn, PageTable.flagValid)
+            && pageTable.getPPN(vpn) == ppn;
+    }
+
+    /**
+     * Give a page that shares the page of zeros a private frame, which must
+     * already be filled with zeros, and make the page writable.
+     *
+     * @param pageTable the page table.
+     * @param vpn       the virtual page.
+     * @param ppn       the page's new frame.
+     */
+    public void unshare(PageTable pageTable, int vpn, int ppn) {
+        Lib.assertTrue(isMapped(pageTable, vpn));
+
+        pageTable.set(vpn, ppn, PageTable.flagValid);
+        numUnshared++;
+    }
+
+    /**
+     * Return the frame that holds the page of zeros.
+     *
+     * @return the frame number.
+     */
+    public int getFrame() {
+        return ppn;
+    }
+
+    /**
+     * Print how many pages have shared the page of zeros, and how many of
+     * them were later written.
+     */
+    public void print() {
+        System.out.println("Zero page: pages mapped " + numMapped
+            + ", written " + numUnshared);
+    }
+
+    private int ppn;
+    private int numMapped = 0;
+    private int numUnshared = 0;
+}
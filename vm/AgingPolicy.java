@@ -0,0 +1,69 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Approximates least recently used replacement by aging. Each frame has a
+ * 32-bit age counter. Every time a victim is needed, each counter is shifted
+ * right, its page's <tt>used</tt> bit is shifted in at the top, and the bit
+ * is cleared; the page with the smallest counter, the one whose recent uses
+ * are fewest and furthest back, is replaced. A page starts out as if it had
+ * just been used, so it is not replaced before it has had a chance to run.
+ */
+public class AgingPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new aging policy.
+     */
+    public AgingPolicy() {
+    }
+
+    public void initialize(CoreMap coreMap) {
+	this.coreMap = coreMap;
+	numFrames = coreMap.getNumFrames();
+	ages = new int[numFrames];
+    }
+
+    public void pageMapped(int ppn) {
+	ages[ppn] = newest;
+    }
+
+    public void pageUnmapped(int ppn) {
+	ages[ppn] = 0;
+    }
+
+    public int chooseVictim() {
+	for (int ppn=0; ppn<numFrames; ppn++) {
+	    if (!coreMap.isMapped(ppn))
+		continue;
+
+	    ages[ppn] >>>= 1;
+	    if (coreMap.isUsed(ppn)) {
+		ages[ppn] |= newest;
+		coreMap.clearUsed(ppn);
+	    }
+	}
+
+	// start where the last search stopped, so ties are broken in turn
+	int victim = -1;
+	for (int i=0; i<numFrames; i++) {
+	    int ppn = (start + i) % numFrames;
+	    if (coreMap.isReplaceable(ppn)
+		&& (victim == -1 || unsignedLess(ages[ppn], ages[victim])))
+		victim = ppn;
+	}
+	start = (victim + 1) % numFrames;
+
+	return victim;
+    }
+
+    private static boolean unsignedLess(int a, int b) {
+	return (a ^ Integer.MIN_VALUE) < (b ^ Integer.MIN_VALUE);
+    }
+
+    private static final int newest = Integer.MIN_VALUE;
+
+    private CoreMap coreMap;
+    private int numFrames;
+    private int[] ages;
+    private int start = 0;
+}
@@ -0,0 +1,51 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The second-chance clock algorithm. A hand sweeps the frames in order; a
+ * page whose <tt>used</tt> bit is set has it cleared and is passed over,
+ * and the first page found with the bit clear is replaced.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public void initialize(CoreMap coreMap) {
+	this.coreMap = coreMap;
+	numFrames = coreMap.getNumFrames();
+    }
+
+    public void pageMapped(int ppn) {
+    }
+
+    public void pageUnmapped(int ppn) {
+    }
+
+    public int chooseVictim() {
+	// two full turns: the first may only clear used bits
+	for (int i=0; i<2*numFrames; i++) {
+	    int ppn = hand;
+	    hand = (hand + 1) % numFrames;
+
+	    if (!coreMap.isReplaceable(ppn))
+		continue;
+
+	    if (coreMap.isUsed(ppn)) {
+		coreMap.clearUsed(ppn);
+		continue;
+	    }
+
+	    return ppn;
+	}
+
+	return -1;
+    }
+
+    private CoreMap coreMap;
+    private int numFrames;
+    private int hand = 0;
+}
@@ -0,0 +1,171 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of compressed pages in host memory, keyed by swap slot. The
+ * pool remembers the order pages were stored in, so that when it fills up
+ * the oldest can be moved out to disk first.
+ *
+ * <p>
+ * Pages are compressed with <tt>Deflater</tt> at its fastest level. A page
+ * that does not shrink to at most three quarters of its size is not worth
+ * keeping and is refused.
+ *
+ * <p>
+ * None of these methods block or enable interrupts, so each runs without
+ * interruption from other Nachos threads.
+ */
+public class CompressedPool {
+    /**
+     * Allocate a new, empty pool.
+     *
+     * @param	capacity	the most bytes of compressed data to hold.
+     */
+    public CompressedPool(int capacity) {
+	this.capacity = capacity;
+    }
+
+    /**
+     * Compress a page.
+     *
+     * @param	data	the array holding the page.
+     * @param	offset	the offset of the page in <i>data</i>.
+     * @return	the compressed page, or <tt>null</tt> if it does not compress
+     *		well enough to keep.
+     */
+    public byte[] compress(byte[] data, int offset) {
+	deflater.reset();
+	deflater.setInput(data, offset, pageSize);
+	deflater.finish();
+	int length = deflater.deflate(buffer, 0, maxCompressedSize + 1);
+	if (!deflater.finished() || length > maxCompressedSize) {
+	    numRefused++;
+	    return null;
+	}
+
+	byte[] packed = new byte[length];
+	System.arraycopy(buffer, 0, packed, 0, length);
+	return packed;
+    }
+
+    /**
+     * Store a compressed page, if there is room for it.
+     *
+     * @param	slot	the slot the page belongs to.
+     * @param	packed	the page, as returned by <tt>compress()</tt>.
+     * @return	<tt>true</tt> if the page was stored.
+     */
+    public boolean put(int slot, byte[] packed) {
+	if (size + packed.length > capacity)
+	    return false;
+
+	pages.put(slot, packed);
+	size += packed.length;
+	peakSize = Math.max(peakSize, size);
+	numStored++;
+	bytesIn += pageSize;
+	bytesOut += packed.length;
+	return true;
+    }
+
+    /**
+     * Return the compressed page for a slot.
+     *
+     * @param	slot	the slot.
+     * @return	the compressed page, or <tt>null</tt> if the slot is not in the
+     *		pool.
+     */
+    public byte[] get(int slot) {
+	return pages.get(slot);
+    }
+
+    /**
+     * Remove a slot's page from the pool.
+     *
+     * @param	slot	the slot.
+     * @return	the compressed page, or <tt>null</tt> if the slot was not in
+     *		the pool.
+     */
+    public byte[] remove(int slot) {
+	byte[] packed = pages.remove(slot);
+	if (packed != null)
+	    size -= packed.length;
+	return packed;
+    }
+
+    /**
+     * Return the slot of the page that has been in the pool longest.
+     *
+     * @return	the slot, or -1 if the pool is empty.
+     */
+    public int oldest() {
+	Iterator<Integer> i = pages.keySet().iterator();
+	return i.hasNext() ? i.next() : -1;
+    }
+
+    /**
+     * Return whether a compressed page of the specified size would fit in
+     * the pool without removing anything.
+     *
+     * @param	length	the size of the compressed page.
+     * @return	<tt>true</tt> if it would fit.
+     */
+    public boolean hasRoom(int length) {
+	return size + length <= capacity;
+    }
+
+    /**
+     * Decompress a page.
+     *
+     * @param	packed	the compressed page.
+     * @param	data	the array to decompress it into.
+     * @param	offset	the offset in <i>data</i> to decompress it to.
+     */
+    public void decompress(byte[] packed, byte[] data, int offset) {
+	inflater.reset();
+	inflater.setInput(packed);
+	try {
+	    Lib.assertTrue(inflater.inflate(data, offset, pageSize) == pageSize);
+	}
+	catch (DataFormatException e) {
+	    Lib.assertNotReached("corrupt compressed page");
+	}
+    }
+
+    /**
+     * Print the pool's statistics.
+     */
+    public void print() {
+	long ratio = (bytesOut == 0) ? 0 : 10*bytesIn/bytesOut;
+	System.out.println("Compressed swap: pages stored " + numStored
+			   + ", refused " + numRefused
+			   + ", ratio " + ratio/10 + "." + ratio%10
+			   + ", peak " + peakSize + " of " + capacity
+			   + " bytes");
+    }
+
+    private static final int pageSize = Processor.pageSize;
+    private static final int maxCompressedSize = pageSize*3/4;
+
+    private int capacity;
+    private int size = 0;
+    private LinkedHashMap<Integer, byte[]> pages =
+	new LinkedHashMap<Integer, byte[]>();
+
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+    private byte[] buffer = new byte[pageSize];
+
+    private int peakSize = 0;
+    private int numStored = 0;
+    private int numRefused = 0;
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+}
@@ -0,0 +1,554 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+
+/**
+ * The core map: an inverted page table with one entry per frame of physical
+ * memory, recording which process's virtual page the frame holds. A frame
+ * can be found from the owner and virtual page number through a hash table
+ * chained through the frame array, so a TLB miss finds its translation in
+ * constant time without walking any per-process structure.
+ *
+ * <p>
+ * When no frame is free, a frame is taken from another page chosen by the
+ * <tt>ReplacementPolicy</tt> named by the <tt>VMKernel.replacementPolicy</tt>
+ * key, the clock algorithm by default. The reference and dirty bits a policy
+ * sees are the used and dirty flags in the owner's page table, read through
+ * <tt>isUsed()</tt> and <tt>isDirty()</tt>, with the bits of the pages in
+ * the TLB folded in first. Pinned frames, which are being filled or
+ * otherwise must not move, and frames the TLB translates are never
+ * replaced. A clean page is simply dropped, since it can be read again from
+ * wherever it came from; a dirty page is written to swap first.
+ *
+ * <p>
+ * Every update runs with interrupts disabled and never blocks, so the core
+ * map needs no lock and can be used from the TLB miss handler. The only
+ * wait, for a pinned frame to be released, is on a thread queue with
+ * interrupts disabled, as a semaphore waits.
+ */
+public class CoreMap {
+    /**
+     * Allocate a new core map with every frame unowned.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public CoreMap(int numFrames) {
+	this.numFrames = numFrames;
+	owners = new VMProcess[numFrames];
+	vpns = new int[numFrames];
+	mapped = new boolean[numFrames];
+	pinned = new boolean[numFrames];
+	next = new int[numFrames];
+
+	int numBuckets = 1;
+	while (numBuckets < 2*numFrames)
+	    numBuckets *= 2;
+	buckets = new int[numBuckets];
+	Arrays.fill(buckets, -1);
+
+	policy = (ReplacementPolicy)
+	    Lib.constructObject(Config.getString("VMKernel.replacementPolicy",
+						 "nachos.vm.ClockPolicy"));
+	policy.initialize(this);
+    }
+
+    /**
+     * Allocate a frame to hold a page of a process, taking it from another
+     * page if physical memory is full. The frame is returned pinned, and
+     * stays pinned until it is mapped with <tt>map()</tt> or released with
+     * <tt>unmap()</tt>. If no frame can be replaced only because some are
+     * pinned, as when another process is reading a run of pages ahead, wait
+     * for them to be released.
+     *
+     * @param	owner	the process the page belongs to.
+     * @param	vpn	the virtual page the frame will hold.
+     * @param	zeroed	<tt>true</tt> if the frame must be filled with zeros.
+     * @return	the frame number, or -1 if every frame holds a page that
+     *		cannot be replaced.
+     */
+    public int allocate(VMProcess owner, int vpn, boolean zeroed) {
+	numFaults++;
+
+	while (true) {
+	    int unpinsBefore = numUnpins;
+	    int ppn = allocate(owner, vpn, zeroed, true);
+	    if (ppn != -1)
+		return ppn;
+
+	    // try again at once if a frame was unpinned while we looked,
+	    // otherwise sleep until one is
+	    boolean intStatus = Machine.interrupt().disable();
+	    boolean retry = (numUnpins != unpinsBefore);
+	    if (!retry && anyPinned()) {
+		unpinWaiters.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+		retry = true;
+	    }
+	    Machine.interrupt().restore(intStatus);
+
+	    if (!retry)
+		return -1;
+	}
+    }
+
+    /**
+     * Allocate a frame to read a page into ahead of need. Like
+     * <tt>allocate()</tt>, but fails rather than replace a page that would
+     * have to be written to swap first, since a page that may never be used
+     * is not worth a write.
+     *
+     * @param	owner	the process the page belongs to.
+     * @param	vpn	the virtual page the frame will hold.
+     * @return	the frame number, or -1 if no frame is free or clean.
+     */
+    public int allocateForReadAhead(VMProcess owner, int vpn) {
+	return allocate(owner, vpn, false, false);
+    }
+
+    private int allocate(VMProcess owner, int vpn, boolean zeroed,
+			 boolean mayWrite) {
+	int ppn = zeroed ? UserKernel.frameAllocator.allocateZeroed()
+			 : UserKernel.frameAllocator.allocate();
+	boolean evicted = false;
+	if (ppn == -1) {
+	    ppn = evict(mayWrite);
+	    evicted = (ppn != -1);
+	    if (evicted)
+		numFaultEvictions++;
+	}
+
+	if (ppn != -1) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    owners[ppn] = owner;
+	    vpns[ppn] = vpn;
+	    pinned[ppn] = true;
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	if (evicted && zeroed) {
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+	return ppn;
+    }
+
+    /**
+     * Replace a page and return its frame to the frame allocator, so that a
+     * later fault finds a free frame without replacing one itself. Called by
+     * the page-out daemon.
+     *
+     * @return	<tt>true</tt> if a frame was freed, or <tt>false</tt> if no
+     *		frame can be replaced.
+     */
+    public boolean reclaim() {
+	int ppn = evict(true);
+	if (ppn == -1)
+	    return false;
+
+	unmap(ppn);
+	UserKernel.frameAllocator.free(ppn);
+	return true;
+    }
+
+    /**
+     * Make a frame returned by <tt>allocate()</tt> the home of its page:
+     * enter it in the hash table, so that it can be found and replaced, and
+     * unpin it. The page must already be valid in its owner's page table and
+     * point at the frame.
+     *
+     * @param	ppn	the frame.
+     */
+    public void map(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(pinned[ppn] && !mapped[ppn]);
+	PageTable pageTable = owners[ppn].getPageTable();
+	Lib.assertTrue(pageTable.isSet(vpns[ppn], PageTable.flagValid)
+		       && pageTable.getPPN(vpns[ppn]) == ppn);
+	mapped[ppn] = true;
+	int bucket = hash(owners[ppn], vpns[ppn]);
+	next[ppn] = buckets[bucket];
+	buckets[bucket] = ppn;
+	unpin(ppn);
+	policy.pageMapped(ppn);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Make a frame that is not in the core map the home of a page, as
+     * <tt>allocate()</tt> and <tt>map()</tt> together would. Used to hand a
+     * merged frame back to the last page using it.
+     *
+     * @param	ppn	the frame.
+     * @param	owner	the process the page belongs to.
+     * @param	vpn	the page, which must point at the frame.
+     */
+    public void adopt(int ppn, VMProcess owner, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(owners[ppn] == null && !mapped[ppn]);
+	owners[ppn] = owner;
+	vpns[ppn] = vpn;
+	pinned[ppn] = true;
+	map(ppn);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Remove a frame's page from the core map. The frame is then owned by no
+     * one, and the caller must free it.
+     *
+     * @param	ppn	the frame.
+     */
+    public void unmap(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (mapped[ppn]) {
+	    remove(ppn);
+	    policy.pageUnmapped(ppn);
+	}
+	owners[ppn] = null;
+	mapped[ppn] = false;
+	if (pinned[ppn])
+	    unpin(ppn);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Find the frame holding a page of a process, if the page is in physical
+     * memory.
+     *
+     * @param	owner	the process.
+     * @param	vpn	the virtual page number.
+     * @return	the page's frame, or -1 if it has none.
+     */
+    public int lookup(VMProcess owner, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int found = -1;
+	for (int ppn = buckets[hash(owner, vpn)]; ppn != -1; ppn = next[ppn]) {
+	    if (owners[ppn] == owner && vpns[ppn] == vpn) {
+		found = ppn;
+		break;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return found;
+    }
+
+    /**
+     * Return whether a frame holds a page that has been mapped with
+     * <tt>map()</tt>.
+     *
+     * @param	ppn	the frame.
+     * @return	<tt>true</tt> if the frame is mapped.
+     */
+    public boolean isMapped(int ppn) {
+	return mapped[ppn];
+    }
+
+    /**
+     * Return whether the page in a mapped frame has been referenced since
+     * its used bit was last cleared.
+     *
+     * @param	ppn	the frame.
+     * @return	<tt>true</tt> if the page's used bit is set.
+     */
+    public boolean isUsed(int ppn) {
+	return owners[ppn].getPageTable().isSet(vpns[ppn], PageTable.flagUsed);
+    }
+
+    /**
+     * Clear the used bit of the page in a mapped frame.
+     *
+     * @param	ppn	the frame.
+     */
+    public void clearUsed(int ppn) {
+	owners[ppn].getPageTable().clearFlags(vpns[ppn], PageTable.flagUsed);
+    }
+
+    /**
+     * Return whether the page in a mapped frame has been written since it
+     * was last read in or written to swap.
+     *
+     * @param	ppn	the frame.
+     * @return	<tt>true</tt> if the page's dirty bit is set.
+     */
+    public boolean isDirty(int ppn) {
+	return owners[ppn].getPageTable().isSet(vpns[ppn], PageTable.flagDirty);
+    }
+
+    /**
+     * Return the process whose page is in a frame.
+     *
+     * @param	ppn	the frame.
+     * @return	the owner, or <tt>null</tt> if the frame is not in use.
+     */
+    public VMProcess getOwner(int ppn) {
+	return owners[ppn];
+    }
+
+    /**
+     * Return the virtual page number of the page in a frame.
+     *
+     * @param	ppn	the frame.
+     * @return	the virtual page number.
+     */
+    public int getVPN(int ppn) {
+	return vpns[ppn];
+    }
+
+    /**
+     * Return whether the page in a frame may be replaced: the frame holds a
+     * page, is not pinned, and is not translated by the TLB. A frame the TLB
+     * translates holds a page of the current process that was used very
+     * recently, perhaps by the instruction now faulting, and taking it away
+     * could make that instruction fault forever.
+     *
+     * @param	ppn	the frame.
+     * @return	<tt>true</tt> if the frame's page may be replaced.
+     */
+    public boolean isReplaceable(int ppn) {
+	return mapped[ppn] && !pinned[ppn] && !inTLB(ppn);
+    }
+
+    /**
+     * Unpin a frame and wake every thread waiting in <tt>allocate()</tt> for
+     * one to be released. Interrupts must be disabled.
+     */
+    private void unpin(int ppn) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	pinned[ppn] = false;
+	numUnpins++;
+
+	KThread thread;
+	while ((thread = unpinWaiters.nextThread()) != null)
+	    thread.ready();
+    }
+
+    private boolean anyPinned() {
+	for (int ppn=0; ppn<numFrames; ppn++) {
+	    if (pinned[ppn])
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Return the number of frames in the core map.
+     *
+     * @return	the number of frames of physical memory.
+     */
+    public int getNumFrames() {
+	return numFrames;
+    }
+
+    /**
+     * Print the core map's statistics.
+     */
+    public void print() {
+	System.out.println("Paging: page faults " + numFaults
+			   + ", TLB misses " + numTLBMisses
+			   + ", evictions " + numEvictions
+			   + " (" + numFaultEvictions + " at fault time)");
+	System.out.println("Fault latency: avg "
+			   + (numTimedFaults == 0 ? 0
+			      : faultTicks/numTimedFaults)
+			   + ", max " + maxFaultTicks + " ticks");
+	System.out.println("TLB: entries restored " + numTLBRestored);
+	System.out.println("Read-ahead: pages " + numReadAhead
+			   + ", used " + numReadAheadUsed
+			   + ", wasted " + numReadAheadWasted);
+	VMKernel.swap.print();
+    }
+
+    /**
+     * Choose a frame to replace, with the replacement policy, and take it
+     * away from its page. A dirty page is written to swap first, together
+     * with up to <tt>VMKernel.swapCluster - 1</tt> other dirty pages from the
+     * frames after it that have not been referenced recently; those stay in
+     * memory, but are clean afterwards and can later be replaced without a
+     * write.
+     *
+     * @param	mayWrite	<tt>false</tt> to fail rather than write a dirty
+     *				victim to swap.
+     * @return	the frame, or -1 if no frame can be replaced.
+     */
+    private int evict(boolean mayWrite) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	// the TLB holds the freshest reference bits for the current process;
+	// fold them in and clear them, so that the policy sees every reference
+	// made from now on
+	VMProcess current = VMKernel.tlbOwner;
+	if (current != null)
+	    current.syncTLB(true);
+
+	int ppn = policy.chooseVictim();
+	if (ppn == -1 || (!mayWrite && isDirty(ppn))) {
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+
+	boolean dirty = isDirty(ppn);
+	Lib.debug(dbgVM, "evicting page " + vpns[ppn] + " from frame " + ppn
+		  + (dirty ? " to swap" : ""));
+
+	int[] cluster = null;
+	VMProcess[] clusterOwners = null;
+	int[] clusterVPNs = null;
+	int clusterSize = 0;
+	if (dirty) {
+	    cluster = new int[swapCluster];
+	    clusterOwners = new VMProcess[swapCluster];
+	    clusterVPNs = new int[swapCluster];
+	    cluster[clusterSize++] = ppn;
+
+	    for (int i=1; i<numFrames && clusterSize<swapCluster; i++) {
+		int f = (ppn + i) % numFrames;
+		if (isReplaceable(f) && isDirty(f) && !isUsed(f))
+		    cluster[clusterSize++] = f;
+	    }
+	    for (int i=0; i<clusterSize; i++) {
+		clusterOwners[i] = owners[cluster[i]];
+		clusterVPNs[i] = vpns[cluster[i]];
+	    }
+	}
+
+	owners[ppn].pageEvicted(vpns[ppn]);
+	remove(ppn);
+	policy.pageUnmapped(ppn);
+	mapped[ppn] = false;
+	numEvictions++;
+
+	// copy the cluster out and give each page its new slot while nothing
+	// can change them, and keep the pages that stay in memory pinned
+	// until their slots are written
+	int slot = -1;
+	byte[] data = null;
+	if (clusterSize > 0) {
+	    slot = VMKernel.swap.allocate(clusterSize);
+	    data = new byte[clusterSize*pageSize];
+	    byte[] memory = Machine.processor().getMemory();
+	    for (int i=0; i<clusterSize; i++) {
+		int f = cluster[i];
+		System.arraycopy(memory, f*pageSize, data, i*pageSize,
+				 pageSize);
+		owners[f].setSwapSlot(vpns[f], slot + i);
+		owners[f].getPageTable().clearFlags(vpns[f],
+						    PageTable.flagDirty);
+		pinned[f] = (i > 0);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	if (clusterSize > 0) {
+	    VMKernel.swap.write(slot, data, clusterSize);
+
+	    intStatus = Machine.interrupt().disable();
+	    for (int i=1; i<clusterSize; i++) {
+		// the owner may have exited and freed the frame meanwhile
+		int f = cluster[i];
+		if (mapped[f] && owners[f] == clusterOwners[i]
+		    && vpns[f] == clusterVPNs[i])
+		    unpin(f);
+	    }
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	return ppn;
+    }
+
+    /**
+     * Return whether the TLB translates a frame.
+     */
+    private boolean inTLB(int ppn) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.ppn == ppn)
+		return true;
+	}
+	return false;
+    }
+
+    private void remove(int ppn) {
+	int bucket = hash(owners[ppn], vpns[ppn]);
+	if (buckets[bucket] == ppn) {
+	    buckets[bucket] = next[ppn];
+	}
+	else {
+	    int prev = buckets[bucket];
+	    while (next[prev] != ppn)
+		prev = next[prev];
+	    next[prev] = next[ppn];
+	}
+	next[ppn] = -1;
+    }
+
+    private int hash(VMProcess owner, int vpn) {
+	return (System.identityHashCode(owner) ^ vpn*0x9E3779B1)
+	    & (buckets.length - 1);
+    }
+
+    /** The number of TLB misses, counted by the miss handler. */
+    int numTLBMisses = 0;
+    /** The number of TLB entries put back after context switches. */
+    int numTLBRestored = 0;
+    /**
+     * Record how long a page fault took to bring its page in, measured by
+     * the faulting process.
+     *
+     * @param	ticks	the time the fault took.
+     */
+    void recordFault(long ticks) {
+	numTimedFaults++;
+	faultTicks += ticks;
+	maxFaultTicks = Math.max(maxFaultTicks, ticks);
+    }
+
+    /** The number of pages read ahead of need, counted by the processes. */
+    int numReadAhead = 0;
+    /** The number of pages read ahead that were used before eviction. */
+    int numReadAheadUsed = 0;
+    /** The number of pages read ahead that were evicted unused. */
+    int numReadAheadWasted = 0;
+
+    private int numFrames;
+    private VMProcess[] owners;
+    private int[] vpns;
+    private boolean[] mapped;
+    private boolean[] pinned;
+    private int numUnpins = 0;
+    private ThreadQueue unpinWaiters =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    private int[] buckets;
+    private int[] next;
+
+    private ReplacementPolicy policy;
+
+    private static final int swapCluster =
+	Math.max(1, Config.getInteger("VMKernel.swapCluster", 4));
+
+    private int numFaults = 0;
+    private int numEvictions = 0;
+    private int numFaultEvictions = 0;
+    private int numTimedFaults = 0;
+    private long faultTicks = 0;
+    private long maxFaultTicks = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,66 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Replaces the page that has been in memory longest, ignoring how recently
+ * it was used. Mapped frames are kept in a doubly linked list, in the order
+ * their pages arrived.
+ */
+public class FIFOPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new FIFO policy.
+     */
+    public FIFOPolicy() {
+    }
+
+    public void initialize(CoreMap coreMap) {
+	this.coreMap = coreMap;
+
+	int numFrames = coreMap.getNumFrames();
+	prev = new int[numFrames];
+	next = new int[numFrames];
+	queued = new boolean[numFrames];
+    }
+
+    public void pageMapped(int ppn) {
+	Lib.assertTrue(!queued[ppn]);
+
+	prev[ppn] = tail;
+	next[ppn] = -1;
+	if (tail == -1)
+	    head = ppn;
+	else
+	    next[tail] = ppn;
+	tail = ppn;
+	queued[ppn] = true;
+    }
+
+    public void pageUnmapped(int ppn) {
+	if (!queued[ppn])
+	    return;
+
+	if (prev[ppn] == -1)
+	    head = next[ppn];
+	else
+	    next[prev[ppn]] = next[ppn];
+	if (next[ppn] == -1)
+	    tail = prev[ppn];
+	else
+	    prev[next[ppn]] = prev[ppn];
+	queued[ppn] = false;
+    }
+
+    public int chooseVictim() {
+	for (int ppn=head; ppn!=-1; ppn=next[ppn]) {
+	    if (coreMap.isReplaceable(ppn))
+		return ppn;
+	}
+	return -1;
+    }
+
+    private CoreMap coreMap;
+    private int[] prev, next;
+    private boolean[] queued;
+    private int head = -1, tail = -1;
+}
@@ -0,0 +1,347 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A low-priority kernel thread that finds pages with identical contents,
+ * in the same or different processes, and makes them share a single
+ * read-only frame, after the manner of Linux's KSM. Processes running the
+ * same program hold many such pages: the same code, the same initialized
+ * data, and often the same results.
+ *
+ * <p>
+ * Every <tt>VMKernel.mergeInterval</tt> ticks the scanner wakes up, using the
+ * alarm, and examines the next <tt>VMKernel.mergePagesPerScan</tt> frames of
+ * the core map, going round memory one piece at a time. A page is only a
+ * candidate once its checksum is the same on two passes in a row, so that
+ * pages being written are left alone. A candidate is looked up by checksum
+ * first among the frames already shared, and then among the other
+ * candidates seen on this pass; a match is compared byte for byte before
+ * anything is merged. Two matching candidates make a new shared frame out of
+ * one of their frames, and the other frame is freed.
+ *
+ * <p>
+ * Shared frames leave the core map, and are never replaced, so at most
+ * <tt>VMKernel.maxMergedFrames</tt> of them (by default a quarter of memory)
+ * are made, leaving the rest of memory for the replacement policy. The first
+ * write to a writable page that shares a frame gives it a private copy again
+ * (see <tt>VMProcess.breakMerge()</tt>). When only one page is left using a
+ * shared frame, the frame goes back to the core map as that page's own.
+ *
+ * <p>
+ * The scanner examines each frame with interrupts disabled, so no process
+ * can touch the frame while it is hashed, compared or merged; this takes no
+ * simulated time, so the scanner's cost is reported in host time. Its cost
+ * in simulated time is the context switches to and from it, each of which
+ * leaves the running process with an emptier TLB. Merging is therefore off
+ * unless <tt>VMKernel.mergeInterval</tt> is set.
+ */
+public class PageMerger implements Runnable {
+    /**
+     * Allocate a new page merger, reading its rate from the configuration.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public PageMerger(int numFrames) {
+	this.numFrames = numFrames;
+	interval = Config.getInteger("VMKernel.mergeInterval", 0);
+	pagesPerScan = Config.getInteger("VMKernel.mergePagesPerScan", 16);
+	maxSharedFrames = Config.getInteger("VMKernel.maxMergedFrames",
+					    numFrames/4);
+
+	checksums = new long[numFrames];
+	checkedOwners = new VMProcess[numFrames];
+	checkedVPNs = new int[numFrames];
+	sharers = new ArrayList<ArrayList<Sharer>>(numFrames);
+	for (int ppn=0; ppn<numFrames; ppn++)
+	    sharers.add(null);
+    }
+
+    /**
+     * Fork the scanner's thread, if merging is enabled.
+     */
+    public void start() {
+	if (interval > 0 && pagesPerScan > 0 && maxSharedFrames > 0)
+	    new KThread(this).setName("page merger").fork();
+    }
+
+    /**
+     * The scanner's main loop. Never returns.
+     */
+    public void run() {
+	boolean intStatus = Machine.interrupt().disable();
+	while (ThreadedKernel.scheduler.decreasePriority())
+	    ;
+	Machine.interrupt().restore(intStatus);
+
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(interval);
+
+	    long startTime = System.nanoTime();
+	    for (int i=0; i<pagesPerScan; i++) {
+		intStatus = Machine.interrupt().disable();
+		int freed = scan(hand);
+		Machine.interrupt().restore(intStatus);
+
+		if (freed != -1)
+		    UserKernel.frameAllocator.free(freed);
+
+		hand = (hand + 1) % numFrames;
+		if (hand == 0)
+		    unstable.clear();
+	    }
+	    scanNanos += System.nanoTime() - startTime;
+	    numScans++;
+	}
+    }
+
+    /**
+     * Return whether a frame is shared by merged pages.
+     *
+     * @param	ppn	the frame.
+     * @return	<tt>true</tt> if the frame is shared.
+     */
+    public boolean isShared(int ppn) {
+	return ppn >= 0 && ppn < numFrames && sharers.get(ppn) != null;
+    }
+
+    /**
+     * Let go of a shared frame, on behalf of a page that no longer uses it.
+     * If only one page is left using the frame, the frame goes back to the
+     * core map as that page's own. Must be called with interrupts disabled.
+     *
+     * @param	ppn	the shared frame.
+     * @param	owner	the process the page belongs to.
+     * @param	vpn	the page.
+     * @param	copied	<tt>true</tt> if the page is letting go because it was
+     *			written and got a private copy.
+     */
+    public void release(int ppn, VMProcess owner, int vpn, boolean copied) {
+	Lib.assertTrue(Machine.interrupt().disabled() && isShared(ppn));
+
+	ArrayList<Sharer> list = sharers.get(ppn);
+	for (int i=0; i<list.size(); i++) {
+	    if (list.get(i).owner == owner && list.get(i).vpn == vpn) {
+		list.remove(i);
+		break;
+	    }
+	}
+	if (copied)
+	    numCopied++;
+	numSharers--;
+	if (list.size() > 1)
+	    return;
+
+	Sharer last = list.get(0);
+	last.owner.pageUnmerged(last.vpn);
+
+	sharers.set(ppn, null);
+	ArrayList<Integer> frames = stable.get(checksums[ppn]);
+	frames.remove((Integer) ppn);
+	if (frames.isEmpty())
+	    stable.remove(checksums[ppn]);
+	checkedOwners[ppn] = null;
+	numSharedFrames--;
+	numSharers--;
+
+	VMKernel.coreMap.adopt(ppn, last.owner, last.vpn);
+    }
+
+    /**
+     * Print the merger's statistics. The frames saved are the pages now
+     * sharing a frame, less the frames they share.
+     */
+    public void print() {
+	if (numScans == 0)
+	    return;
+
+	System.out.println("Page merging: scans " + numScans
+			   + ", pages hashed " + numHashed
+			   + ", compared " + numCompared
+			   + ", merged " + numMerged
+			   + ", copied on write " + numCopied);
+	System.out.println("Page merging: shared frames " + numSharedFrames
+			   + ", frames saved " + (numSharers - numSharedFrames)
+			   + ", peak saved " + peakSaved
+			   + ", scan time " + scanNanos/1000 + " us");
+    }
+
+    /**
+     * Examine one frame, merging its page with an identical one if there is
+     * one. Must be called with interrupts disabled.
+     *
+     * @return	a frame the caller must free, or -1.
+     */
+    private int scan(int ppn) {
+	CoreMap coreMap = VMKernel.coreMap;
+	if (!coreMap.isReplaceable(ppn))
+	    return -1;
+
+	VMProcess owner = coreMap.getOwner(ppn);
+	int vpn = coreMap.getVPN(ppn);
+	long checksum = checksum(ppn);
+	numHashed++;
+	boolean unchanged = (checkedOwners[ppn] == owner
+			     && checkedVPNs[ppn] == vpn
+			     && checksums[ppn] == checksum);
+	checksums[ppn] = checksum;
+	checkedOwners[ppn] = owner;
+	checkedVPNs[ppn] = vpn;
+	if (!unchanged)
+	    return -1;
+
+	ArrayList<Integer> frames = stable.get(checksum);
+	if (frames != null) {
+	    for (int shared : frames) {
+		if (equal(ppn, shared)) {
+		    merge(ppn, shared);
+		    return ppn;
+		}
+	    }
+	}
+
+	Candidate other = unstable.get(checksum);
+	if (other != null && other.ppn != ppn
+	    && numSharedFrames < maxSharedFrames
+	    && coreMap.isReplaceable(other.ppn)
+	    && coreMap.getOwner(other.ppn) == other.owner
+	    && coreMap.getVPN(other.ppn) == other.vpn
+	    && checksum(other.ppn) == checksum && equal(ppn, other.ppn)) {
+	    unstable.remove(checksum);
+
+	    share(other.ppn, checksum);
+	    merge(ppn, other.ppn);
+	    return ppn;
+	}
+
+	unstable.put(checksum, new Candidate(ppn, owner, vpn));
+	return -1;
+    }
+
+    /**
+     * Turn a frame of the core map into a shared frame, used so far only by
+     * the page it already holds.
+     */
+    private void share(int ppn, long checksum) {
+	CoreMap coreMap = VMKernel.coreMap;
+	VMProcess owner = coreMap.getOwner(ppn);
+	int vpn = coreMap.getVPN(ppn);
+
+	coreMap.unmap(ppn);
+	owner.pageMerged(vpn, ppn);
+
+	sharers.set(ppn, new ArrayList<Sharer>());
+	sharers.get(ppn).add(new Sharer(owner, vpn));
+	checksums[ppn] = checksum;
+	ArrayList<Integer> frames = stable.get(checksum);
+	if (frames == null) {
+	    frames = new ArrayList<Integer>();
+	    stable.put(checksum, frames);
+	}
+	frames.add(ppn);
+	numSharedFrames++;
+	numSharers++;
+    }
+
+    /**
+     * Move the page in a frame of the core map to a shared frame. The
+     * caller frees the page's old frame.
+     */
+    private void merge(int ppn, int shared) {
+	CoreMap coreMap = VMKernel.coreMap;
+	VMProcess owner = coreMap.getOwner(ppn);
+	int vpn = coreMap.getVPN(ppn);
+
+	Lib.debug(dbgVM, "merging page " + vpn + " in frame " + ppn
+		  + " into frame " + shared);
+
+	coreMap.unmap(ppn);
+	checkedOwners[ppn] = null;
+	owner.pageMerged(vpn, shared);
+
+	sharers.get(shared).add(new Sharer(owner, vpn));
+	numMerged++;
+	numSharers++;
+	peakSaved = Math.max(peakSaved, numSharers - numSharedFrames);
+    }
+
+    private long checksum(int ppn) {
+	crc.reset();
+	crc.update(Machine.processor().getMemory(), ppn*pageSize, pageSize);
+	return crc.getValue();
+    }
+
+    private boolean equal(int ppn1, int ppn2) {
+	numCompared++;
+
+	byte[] memory = Machine.processor().getMemory();
+	int offset1 = ppn1*pageSize, offset2 = ppn2*pageSize;
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[offset1+i] != memory[offset2+i])
+		return false;
+	}
+	return true;
+    }
+
+    /** A page seen on this pass that matched nothing yet. */
+    private static class Candidate {
+	Candidate(int ppn, VMProcess owner, int vpn) {
+	    this.ppn = ppn;
+	    this.owner = owner;
+	    this.vpn = vpn;
+	}
+
+	int ppn;
+	VMProcess owner;
+	int vpn;
+    }
+
+    /** A page using a shared frame. */
+    private static class Sharer {
+	Sharer(VMProcess owner, int vpn) {
+	    this.owner = owner;
+	    this.vpn = vpn;
+	}
+
+	VMProcess owner;
+	int vpn;
+    }
+
+    private int numFrames;
+    private int interval;
+    private int pagesPerScan;
+    private int maxSharedFrames;
+    private int hand = 0;
+
+    /** Each frame's checksum when last scanned, and the page it held. */
+    private long[] checksums;
+    private VMProcess[] checkedOwners;
+    private int[] checkedVPNs;
+    /** The pages using each shared frame, or <tt>null</tt>. */
+    private ArrayList<ArrayList<Sharer>> sharers;
+
+    private HashMap<Long, ArrayList<Integer>> stable =
+	new HashMap<Long, ArrayList<Integer>>();
+    private HashMap<Long, Candidate> unstable = new HashMap<Long, Candidate>();
+
+    private CRC32 crc = new CRC32();
+
+    private int numScans = 0;
+    private int numHashed = 0;
+    private int numCompared = 0;
+    private int numMerged = 0;
+    private int numCopied = 0;
+    private int numSharedFrames = 0;
+    private int numSharers = 0;
+    private int peakSaved = 0;
+    private long scanNanos = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,96 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A kernel thread that keeps a reserve of free frames, so that a page fault
+ * rarely has to replace a page, and wait for it to be written to swap,
+ * before it can bring its own page in.
+ *
+ * <p>
+ * The daemon wakes up every <tt>VMKernel.pageoutInterval</tt> ticks, using
+ * the alarm. If fewer than <tt>VMKernel.lowWatermark</tt> frames are free,
+ * it replaces pages through the core map, writing dirty ones to swap, until
+ * <tt>VMKernel.highWatermark</tt> frames are free. The watermarks default to
+ * a sixteenth and an eighth of physical memory; a watermark of 0 disables
+ * the daemon, as it does by default on machines of fewer than 16 frames,
+ * where every frame kept free is a large share of the working set.
+ */
+public class PageoutDaemon implements Runnable {
+    /**
+     * Allocate a new page-out daemon, reading its watermarks from the
+     * configuration.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public PageoutDaemon(int numFrames) {
+	lowWatermark = Config.getInteger("VMKernel.lowWatermark",
+					 numFrames/16);
+	highWatermark = Config.getInteger("VMKernel.highWatermark",
+					  2*lowWatermark);
+	interval = Math.max(1, Config.getInteger("VMKernel.pageoutInterval",
+						 2000));
+	Lib.assertTrue(!isEnabled()
+		       || (lowWatermark <= highWatermark
+			   && highWatermark < numFrames));
+    }
+
+    /**
+     * Fork the daemon's thread, unless it is disabled.
+     */
+    public void start() {
+	if (isEnabled())
+	    new KThread(this).setName("pageout daemon").fork();
+    }
+
+    /**
+     * Return whether the daemon runs at all.
+     *
+     * @return	<tt>true</tt> if both watermarks are positive.
+     */
+    public boolean isEnabled() {
+	return lowWatermark > 0 && highWatermark > 0;
+    }
+
+    /**
+     * The daemon's main loop. Never returns.
+     */
+    public void run() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(interval);
+	    numWakeups++;
+
+	    if (UserKernel.frameAllocator.getNumFree() >= lowWatermark)
+		continue;
+
+	    Lib.debug(dbgVM, "page-out daemon reclaiming frames");
+	    numRuns++;
+	    while (UserKernel.frameAllocator.getNumFree() < highWatermark
+		   && VMKernel.coreMap.reclaim())
+		numReclaimed++;
+	}
+    }
+
+    /**
+     * Print the daemon's statistics.
+     */
+    public void print() {
+	if (!isEnabled())
+	    return;
+
+	System.out.println("Page-out daemon: wakeups " + numWakeups
+			   + ", runs " + numRuns
+			   + ", frames reclaimed " + numReclaimed);
+    }
+
+    private int lowWatermark, highWatermark;
+    private long interval;
+
+    private int numWakeups = 0;
+    private int numRuns = 0;
+    private int numReclaimed = 0;
+
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,40 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Replaces a page chosen at random. Uses the Nachos random number generator,
+ * so runs are repeatable for a given <tt>-s</tt> seed.
+ */
+public class RandomPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new random policy.
+     */
+    public RandomPolicy() {
+    }
+
+    public void initialize(CoreMap coreMap) {
+	this.coreMap = coreMap;
+	numFrames = coreMap.getNumFrames();
+    }
+
+    public void pageMapped(int ppn) {
+    }
+
+    public void pageUnmapped(int ppn) {
+    }
+
+    public int chooseVictim() {
+	// probe from a random frame to the first one that can be replaced
+	int start = Lib.random(numFrames);
+	for (int i=0; i<numFrames; i++) {
+	    int ppn = (start + i) % numFrames;
+	    if (coreMap.isReplaceable(ppn))
+		return ppn;
+	}
+	return -1;
+    }
+
+    private CoreMap coreMap;
+    private int numFrames;
+}
@@ -0,0 +1,46 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A page replacement policy: decides which page the core map takes a frame
+ * from when physical memory is full.
+ *
+ * <p>
+ * The core map tells the policy whenever a frame gets a page or loses one,
+ * and asks it for a victim with interrupts disabled, so a policy never needs
+ * a lock. A policy may read and clear the <tt>used</tt> bits of the pages it
+ * looks at, through <tt>CoreMap.isUsed()</tt> and <tt>clearUsed()</tt>; the
+ * bits of the pages in the TLB have already been folded in.
+ * The policy to use is named by the <tt>VMKernel.replacementPolicy</tt> key.
+ */
+public interface ReplacementPolicy {
+    /**
+     * Prepare to choose frames of the specified core map.
+     *
+     * @param	coreMap	the core map.
+     */
+    public void initialize(CoreMap coreMap);
+
+    /**
+     * Called after a frame is given a page.
+     *
+     * @param	ppn	the frame.
+     */
+    public void pageMapped(int ppn);
+
+    /**
+     * Called after a frame loses its page, whether replaced or released.
+     *
+     * @param	ppn	the frame.
+     */
+    public void pageUnmapped(int ppn);
+
+    /**
+     * Choose a frame to replace, among those for which
+     * <tt>coreMap.isReplaceable()</tt> is true.
+     *
+     * @return	the frame, or -1 if no frame can be replaced.
+     */
+    public int chooseVictim();
+}
@@ -0,0 +1,377 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The backing store for pages that have been replaced while dirty. The swap
+ * file lives in the kernel's file system and is divided into page-sized
+ * slots, handed out by a bitmap that grows as more slots are needed.
+ *
+ * <p>
+ * Several pages can be written to a run of contiguous slots with a single
+ * write, so that the fixed cost of each file operation is shared between
+ * them. A slot is marked pending from the time it is allocated until its
+ * write completes. Reading a pending slot waits for the write, and freeing a
+ * pending slot is put off until the write is done, so that a slot is never
+ * read or reused while its contents are still in flight.
+ *
+ * <p>
+ * In front of the file sits a pool of compressed pages in host memory, of at
+ * most <tt>VMKernel.compressedSwapSize</tt> bytes (0 turns it off). A page
+ * written to swap is compressed into the pool if it compresses well, and only
+ * goes to the file if it does not. When the pool is full, the pages that have
+ * been in it longest are spilled to their slots in the file to make room.
+ * Reading a slot from the pool costs no file operation.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file.
+     *
+     * @param	name	the name of the file to swap to.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "cannot open swap file " + name);
+
+	int poolSize = Config.getInteger("VMKernel.compressedSwapSize",
+					 16*pageSize);
+	if (poolSize > 0)
+	    pool = new CompressedPool(poolSize);
+    }
+
+    /**
+     * Allocate a run of contiguous free slots, growing the swap file if there
+     * is no such run. The slots are pending until they are written with
+     * <tt>write()</tt>.
+     *
+     * @param	count	the number of slots.
+     * @return	the first slot of the run.
+     */
+    public int allocate(int count) {
+	Lib.assertTrue(count > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int first = 0;
+	int runLength = 0;
+	while (runLength < count) {
+	    int slot = first + runLength;
+	    if (slot < numSlots && isUsed(slot)) {
+		first = slot + 1;
+		runLength = 0;
+	    }
+	    else {
+		runLength++;
+	    }
+	}
+	if (first + count > numSlots)
+	    grow(first + count);
+
+	for (int slot=first; slot<first+count; slot++) {
+	    setUsed(slot, true);
+	    pending[slot] = true;
+	}
+	numUsed += count;
+	peakUsed = Math.max(peakUsed, numUsed);
+
+	Machine.interrupt().restore(intStatus);
+	return first;
+    }
+
+    /**
+     * Free a slot. If a write to the slot is still pending, the slot becomes
+     * free when the write completes.
+     *
+     * @param	slot	the slot to free.
+     */
+    public void free(int slot) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(slot >= 0 && slot < numSlots && isUsed(slot));
+	if (pending[slot]) {
+	    orphaned[slot] = true;
+	}
+	else {
+	    setUsed(slot, false);
+	    numUsed--;
+	    if (pool != null)
+		pool.remove(slot);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Write pages to a run of slots, and mark the slots no longer pending.
+     * Pages that compress well go to the compressed pool; the rest are
+     * written to the file, with one file operation for each run of them.
+     *
+     * @param	slot	the first slot of the run.
+     * @param	data	the contents of the pages, one after the other.
+     * @param	count	the number of pages.
+     */
+    public void write(int slot, byte[] data, int count) {
+	boolean[] toFile = new boolean[count];
+	for (int i=0; i<count; i++) {
+	    byte[] packed = (pool == null) ? null
+		: pool.compress(data, i*pageSize);
+	    toFile[i] = (packed == null || !store(slot + i, packed));
+	}
+
+	for (int i=0; i<count; ) {
+	    int j = i;
+	    while (j < count && toFile[j])
+		j++;
+	    if (j > i)
+		writeFile(slot + i, data, i*pageSize, j - i);
+	    i = j + 1;
+	}
+
+	lock.acquire();
+	for (int i=slot; i<slot+count; i++)
+	    writeCompleted(i);
+	writeDone.wakeAll();
+	lock.release();
+    }
+
+    /**
+     * Read a slot into a frame, first waiting for any pending write to the
+     * slot to complete.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the frame to read it into.
+     * @return	<tt>true</tt> if the page was read.
+     */
+    public boolean read(int slot, int ppn) {
+	return read(slot, new int[] { ppn }, 1);
+    }
+
+    /**
+     * Read a run of contiguous slots into frames, first waiting for any
+     * pending writes to the slots to complete. Slots in the compressed pool
+     * are decompressed, and each run of the others is read from the file
+     * with a single file operation.
+     *
+     * @param	slot	the first slot of the run.
+     * @param	frames	the frames to read the slots into, in order.
+     * @param	count	the number of slots.
+     * @return	<tt>true</tt> if the pages were read.
+     */
+    public boolean read(int slot, int[] frames, int count) {
+	long startTime = Machine.timer().getTime();
+
+	// take the compressed pages while holding the lock, so that none of
+	// them can be spilled between here and the file read
+	byte[][] packed = new byte[count][];
+	boolean fromFile = false;
+
+	lock.acquire();
+	for (int i=slot; i<slot+count; i++) {
+	    while (pending[i])
+		writeDone.sleep();
+	}
+	for (int i=0; i<count; i++) {
+	    if (pool != null)
+		packed[i] = pool.get(slot + i);
+	    if (packed[i] == null)
+		fromFile = true;
+	}
+	lock.release();
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<count; ) {
+	    int j = i;
+	    while (j < count && packed[j] == null)
+		j++;
+	    if (j > i && !readFile(slot + i, frames, i, j - i))
+		return false;
+	    i = j + 1;
+	}
+	for (int i=0; i<count; i++) {
+	    if (packed[i] != null)
+		pool.decompress(packed[i], memory, frames[i]*pageSize);
+	}
+
+	// a swap-in is only as fast as its slowest page
+	long ticks = Machine.timer().getTime() - startTime;
+	if (fromFile) {
+	    numFileSwapIns++;
+	    fileSwapInTicks += ticks;
+	}
+	else {
+	    numPoolSwapIns++;
+	    poolSwapInTicks += ticks;
+	}
+	return true;
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    /**
+     * Print the swap file's statistics.
+     */
+    public void print() {
+	if (pool != null) {
+	    pool.print();
+	    System.out.println("Swap-in latency: from pool " + numPoolSwapIns
+			       + ", avg "
+			       + average(poolSwapInTicks, numPoolSwapIns)
+			       + " ticks; from file " + numFileSwapIns
+			       + ", avg "
+			       + average(fileSwapInTicks, numFileSwapIns)
+			       + " ticks; pages spilled " + numSpilled);
+	}
+	System.out.println("Swap: reads " + numReads
+			   + " (" + numPagesRead + " pages)"
+			   + ", writes " + numWrites
+			   + " (" + numPagesWritten + " pages)"
+			   + ", slots in use " + numUsed
+			   + ", peak " + peakUsed);
+    }
+
+    /**
+     * Put a compressed page in the pool, spilling the oldest pages in the
+     * pool to the file until there is room for it.
+     *
+     * @param	slot	the slot the page belongs to.
+     * @param	packed	the compressed page.
+     * @return	<tt>true</tt> if the page was stored, or <tt>false</tt> if it
+     *		does not fit even in an empty pool.
+     */
+    private boolean store(int slot, byte[] packed) {
+	lock.acquire();
+	while (!pool.hasRoom(packed.length)) {
+	    int oldest = pool.oldest();
+	    if (oldest == -1) {
+		lock.release();
+		return false;
+	    }
+
+	    // the page is pending until it reaches the file, so that no one
+	    // reads the slot in between
+	    byte[] victim = pool.remove(oldest);
+	    pending[oldest] = true;
+	    lock.release();
+
+	    byte[] data = new byte[pageSize];
+	    pool.decompress(victim, data, 0);
+	    writeFile(oldest, data, 0, 1);
+
+	    lock.acquire();
+	    writeCompleted(oldest);
+	    writeDone.wakeAll();
+	    numSpilled++;
+	}
+	pool.put(slot, packed);
+	lock.release();
+	return true;
+    }
+
+    private void writeFile(int slot, byte[] data, int offset, int count) {
+	int length = count*pageSize;
+	Lib.assertTrue(file.write(slot*pageSize, data, offset, length) == length,
+		       "swap write failed");
+	numWrites++;
+	numPagesWritten += count;
+    }
+
+    private boolean readFile(int slot, int[] frames, int first, int count) {
+	numReads++;
+	numPagesRead += count;
+
+	byte[] memory = Machine.processor().getMemory();
+	if (count == 1) {
+	    return file.read(slot*pageSize, memory, frames[first]*pageSize,
+			     pageSize) == pageSize;
+	}
+
+	int length = count*pageSize;
+	byte[] data = new byte[length];
+	if (file.read(slot*pageSize, data, 0, length) != length)
+	    return false;
+	for (int i=0; i<count; i++) {
+	    System.arraycopy(data, i*pageSize, memory,
+			     frames[first+i]*pageSize, pageSize);
+	}
+	return true;
+    }
+
+    private void writeCompleted(int slot) {
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+
+	pending[slot] = false;
+	if (orphaned[slot]) {
+	    orphaned[slot] = false;
+	    free(slot);
+	}
+    }
+
+    private static long average(long total, int count) {
+	return (count == 0) ? 0 : total/count;
+    }
+
+    private boolean isUsed(int slot) {
+	return (bitmap[slot/64] & (1L << (slot%64))) != 0;
+    }
+
+    private void setUsed(int slot, boolean used) {
+	if (used)
+	    bitmap[slot/64] |= 1L << (slot%64);
+	else
+	    bitmap[slot/64] &= ~(1L << (slot%64));
+    }
+
+    private void grow(int minSlots) {
+	int newSlots = Math.max(2*numSlots, (minSlots+63)/64*64);
+
+	long[] newBitmap = new long[newSlots/64];
+	System.arraycopy(bitmap, 0, newBitmap, 0, bitmap.length);
+	bitmap = newBitmap;
+
+	boolean[] newPending = new boolean[newSlots];
+	System.arraycopy(pending, 0, newPending, 0, numSlots);
+	pending = newPending;
+
+	boolean[] newOrphaned = new boolean[newSlots];
+	System.arraycopy(orphaned, 0, newOrphaned, 0, numSlots);
+	orphaned = newOrphaned;
+
+	numSlots = newSlots;
+    }
+
+    private String name;
+    private OpenFile file;
+
+    private int numSlots = 0;
+    private long[] bitmap = new long[0];
+    private boolean[] pending = new boolean[0];
+    private boolean[] orphaned = new boolean[0];
+
+    private int numUsed = 0;
+    private int peakUsed = 0;
+    private int numReads = 0;
+    private int numPagesRead = 0;
+    private int numWrites = 0;
+    private int numPagesWritten = 0;
+
+    private CompressedPool pool = null;
+    private int numSpilled = 0;
+    private int numPoolSwapIns = 0;
+    private long poolSwapInTicks = 0;
+    private int numFileSwapIns = 0;
+    private long fileSwapInTicks = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 writeDone = new Condition2(lock);
+
+    private static final int pageSize = Processor.pageSize;
+}
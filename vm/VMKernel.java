@@ -21,6 +21,11 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	coreMap = new CoreMap(Machine.processor().getNumPhysPages());
+	swap = new SwapFile(Config.getString("VMKernel.swapFile", "nachos.swp"));
+	pageoutDaemon = new PageoutDaemon(Machine.processor().getNumPhysPages());
+	pageMerger = new PageMerger(Machine.processor().getNumPhysPages());
     }
 
     /**
@@ -34,6 +39,8 @@ public class VMKernel extends UserKernel {
      * Start running user programs.
      */
     public void run() {
+	pageoutDaemon.start();
+	pageMerger.start();
 	super.run();
     }
     
@@ -41,9 +48,49 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swap.close();
 	super.terminate();
     }
 
+    /**
+     * Print the kernel's statistics, adding paging statistics to the memory
+     * statistics.
+     */
+    protected void printStatistics() {
+	super.printStatistics();
+	if (Lib.test(dbgFrames)) {
+	    coreMap.print();
+	    pageoutDaemon.print();
+	    pageMerger.print();
+	}
+    }
+
+    /**
+     * Globally accessible reference to the core map.
+     */
+    public static CoreMap coreMap;
+
+    /**
+     * Globally accessible reference to the swap file.
+     */
+    public static SwapFile swap;
+
+    /**
+     * Globally accessible reference to the page-out daemon.
+     */
+    public static PageoutDaemon pageoutDaemon;
+
+    /**
+     * Globally accessible reference to the same-page merger.
+     */
+    public static PageMerger pageMerger;
+
+    /**
+     * The process whose translations are in the TLB, or <tt>null</tt> if the
+     * TLB is empty.
+     */
+    public static VMProcess tlbOwner = null;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -18,36 +18,472 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. Folds the reference and dirty
+     * bits in the TLB into this process's page table, and moves a snapshot of
+     * the TLB's entries aside in the process before clearing the TLB.
      */
     public void saveState() {
 	super.saveState();
+
+	syncTLB(false);
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    savedTLB[i] = processor.readTLBEntry(i);
+	    processor.writeTLBEntry(i, new TranslationEntry());
+	}
+	VMKernel.tlbOwner = null;
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
      * <tt>UThread.restoreState()</tt>.
+     *
+     * <p>
+     * The entries in the snapshot taken by <tt>saveState()</tt> are put back,
+     * so the process does not have to miss on them all over again. Each one
+     * is checked against the core map first, and dropped if its page has
+     * since been replaced or now lives in another frame; the entry written is
+     * rebuilt from the page table, so it carries the page's current flags.
      */
     public void restoreState() {
-	super.restoreState();
+	VMKernel.tlbOwner = this;
+
+	Processor processor = Machine.processor();
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry saved = savedTLB[i];
+	    savedTLB[i] = null;
+	    if (saved == null || !saved.valid)
+		continue;
+
+	    if (VMKernel.coreMap.lookup(this, saved.vpn) == saved.ppn) {
+		processor.writeTLBEntry(i, pageTable.getEntry(saved.vpn));
+		VMKernel.coreMap.numTLBRestored++;
+	    }
+	}
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. No page is given a frame until it is first touched, and
+     * pages that start out zeroed are not given one until they are first
+     * written. The page table starts out empty.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new PageTable(numPages);
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	int[] frames = new int[pageTable.getNumMapped()];
+	int numFrames = 0;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (VMKernel.tlbOwner == this)
+	    invalidateTLB(-1);
+	for (int vpn=pageTable.nextMapped(0); vpn!=-1;
+	     vpn=pageTable.nextMapped(vpn+1)) {
+	    int ppn = pageTable.getPPN(vpn);
+	    if (pageTable.isSet(vpn, flagMerged)) {
+		VMKernel.pageMerger.release(ppn, this, vpn, false);
+	    }
+	    else if (pageTable.isSet(vpn, PageTable.flagValid)
+		     && !UserKernel.zeroPage.isMapped(pageTable, vpn)) {
+		VMKernel.coreMap.unmap(ppn);
+		frames[numFrames++] = ppn;
+	    }
+	    setSwapSlot(vpn, -1);
+	    pageTable.remove(vpn);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	UserKernel.frameAllocator.free(frames, numFrames);
+
+	coff.close();
+    }
+
+    /**
+     * Bring a page into physical memory. A page that was written to swap is
+     * read back from swap. Otherwise, pages of initialized sections are read
+     * from the executable, and all other pages are mapped to the shared page
+     * of zeros, until they are first written. If memory is full, a page of
+     * some process is replaced to make room.
+     *
+     * @param	vpn	the virtual page that faulted.
+     * @return	<tt>true</tt> if the page is now mapped.
+     */
+    protected boolean handlePageFault(int vpn) {
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	CoffSection section = null;
+	if (vpn < heapStartVPN) {
+	    for (int s=0; s<coff.getNumSections(); s++) {
+		section = coff.getSection(s);
+		if (vpn < section.getFirstVPN() + section.getLength())
+		    break;
+	    }
+	}
+	else if (vpn != argsVPN && !claimDemandZeroPage(vpn)) {
+	    return false;
+	}
+
+	int slot = pageTable.getSwapSlot(vpn);
+	if (slot == -1 && (section == null || sharesZeroPage(section))) {
+	    if (!pageTable.isSet(vpn, PageTable.flagValid)) {
+		Lib.debug(dbgVM, "\tmapping page " + vpn + " to the zero page");
+		UserKernel.zeroPage.map(pageTable, vpn);
+	    }
+	    return true;
+	}
+
+	int ppn = VMKernel.coreMap.allocate(this, vpn, false);
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno frame can be replaced");
+	    return false;
+	}
+
+	if (slot != -1) {
+	    Lib.debug(dbgVM, "\tswapping in page " + vpn + " to frame " + ppn);
+	    if (!swapIn(vpn, slot, ppn))
+		return false;
+	}
+	else if (section != null) {
+	    Lib.debug(dbgVM, "\tpaging in " + section.getName() + " page "
+		      + vpn + " to frame " + ppn);
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+
+	// another thread of this process may have brought the page in while
+	// we waited for a frame
+	if (pageTable.isSet(vpn, PageTable.flagValid)) {
+	    VMKernel.coreMap.unmap(ppn);
+	    UserKernel.frameAllocator.free(ppn);
+	    return true;
+	}
+
+	pageTable.set(vpn, ppn, (section != null && section.isReadOnly())
+		      ? PageTable.flagValid | PageTable.flagReadOnly
+		      : PageTable.flagValid);
+	VMKernel.coreMap.map(ppn);
+
+	return true;
+    }
+
+    /**
+     * Give a page that shares the page of zeros a private zero-filled frame,
+     * so that it can be written. If memory is full, a page of some process
+     * is replaced to make room.
+     *
+     * @param	vpn	the virtual page being written.
+     * @return	<tt>true</tt> if the page now has a private frame.
+     */
+    protected boolean handleZeroPageWrite(int vpn) {
+	int ppn = VMKernel.coreMap.allocate(this, vpn, true);
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno frame can be replaced");
+	    return false;
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// another thread of this process may have done this while we waited
+	// for a frame
+	boolean shared = UserKernel.zeroPage.isMapped(pageTable, vpn);
+	if (shared) {
+	    Lib.debug(dbgVM, "\tgiving page " + vpn + " frame " + ppn);
+	    if (VMKernel.tlbOwner == this)
+		invalidateTLB(UserKernel.zeroPage.getFrame());
+	    UserKernel.zeroPage.unshare(pageTable, vpn, ppn);
+	    VMKernel.coreMap.map(ppn);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	if (!shared) {
+	    VMKernel.coreMap.unmap(ppn);
+	    UserKernel.frameAllocator.free(ppn);
+	}
+	return true;
+    }
+
+    /**
+     * Read a page back from swap, together with the pages after it if this
+     * process seems to be faulting through its swapped pages in order.
+     *
+     * <p>
+     * A fault on the page just past the last one brought in continues a
+     * sequential stream, and doubles the read-ahead window, up to
+     * <tt>VMKernel.maxReadAhead</tt> pages; any other fault closes it. Pages
+     * read ahead that are evicted before they are used halve the window
+     * again (see <tt>pageEvicted()</tt>). The pages read ahead must be in
+     * consecutive slots after the faulting page's, which they usually are
+     * when they were written out together, so that they all come in with a
+     * single read. Read-ahead never forces a dirty page out to make room.
+     *
+     * @param	vpn	the page that faulted.
+     * @param	slot	its swap slot.
+     * @param	ppn	the frame allocated for it, which is freed if the read
+     *			fails.
+     * @return	<tt>true</tt> if the page was read.
+     */
+    private boolean swapIn(int vpn, int slot, int ppn) {
+	if (vpn == nextSequentialVPN)
+	    readAheadWindow = Math.min(Math.max(2*readAheadWindow, 1),
+				       maxReadAhead);
+	else
+	    readAheadWindow = 0;
+
+	int[] frames = new int[1 + readAheadWindow];
+	frames[0] = ppn;
+	int count = 1;
+	while (count <= readAheadWindow) {
+	    int next = vpn + count;
+	    if (next >= numPages || pageTable.getSwapSlot(next) != slot + count
+		|| pageTable.isSet(next, PageTable.flagValid))
+		break;
+
+	    int frame = VMKernel.coreMap.allocateForReadAhead(this, next);
+	    if (frame == -1)
+		break;
+	    frames[count++] = frame;
+	}
+	nextSequentialVPN = vpn + count;
+
+	boolean success = VMKernel.swap.read(slot, frames, count);
+
+	for (int i=1; i<count; i++) {
+	    int next = vpn + i;
+
+	    // the page may have been brought in, or written to a new slot,
+	    // while we waited
+	    if (!success || pageTable.getSwapSlot(next) != slot + i
+		|| pageTable.isSet(next, PageTable.flagValid)) {
+		VMKernel.coreMap.unmap(frames[i]);
+		UserKernel.frameAllocator.free(frames[i]);
+		continue;
+	    }
+
+	    int flags = PageTable.flagValid | flagReadAhead;
+	    if (isReadOnlyPage(next))
+		flags |= PageTable.flagReadOnly;
+	    pageTable.set(next, frames[i], flags);
+	    VMKernel.coreMap.numReadAhead++;
+	    VMKernel.coreMap.map(frames[i]);
+	}
+
+	if (!success) {
+	    VMKernel.coreMap.unmap(ppn);
+	    UserKernel.frameAllocator.free(ppn);
+	}
+	return success;
+    }
+
+    /**
+     * Return the translation for a page on behalf of the kernel, first giving
+     * the page a private copy if it shares a merged frame and the kernel is
+     * about to write it.
+     *
+     * @param	vpn	the virtual page to look up.
+     * @param	writing	<tt>true</tt> if the kernel is about to write the page.
+     * @return	the page's frame, or -1 if the page is not part of the
+     *		address space or cannot be written.
+     */
+    protected int lookupPage(int vpn, boolean writing) {
+	while (writing && vpn >= 0 && vpn < numPages
+	       && pageTable.isSet(vpn, flagMerged) && !isReadOnlyPage(vpn)) {
+	    if (!breakMerge(vpn))
+		return -1;
+	}
+	return super.lookupPage(vpn, writing);
+    }
+
+    /**
+     * Move a page into a frame shared with identical pages, in place of its
+     * own frame, which has already been taken out of the core map. The page
+     * becomes read-only until it is written. Called by the page merger, with
+     * interrupts disabled.
+     *
+     * @param	vpn	the page.
+     * @param	ppn	the shared frame.
+     */
+    void pageMerged(int vpn, int ppn) {
+	if (VMKernel.tlbOwner == this)
+	    invalidateTLB(pageTable.getPPN(vpn));
+
+	pageTable.set(vpn, ppn, PageTable.flagValid | PageTable.flagReadOnly
+		      | flagMerged);
+
+	// the shared frame stays in memory, so the page needs no copy in swap
+	setSwapSlot(vpn, -1);
+    }
+
+    /**
+     * Make the last page using a merged frame the frame's only owner again,
+     * writable if its section is. The page has no copy in swap, so it is
+     * dirty. Called by the page merger, with interrupts disabled, just
+     * before the frame goes back to the core map.
+     *
+     * @param	vpn	the page.
+     */
+    void pageUnmerged(int vpn) {
+	if (VMKernel.tlbOwner == this)
+	    invalidateTLB(pageTable.getPPN(vpn));
+
+	pageTable.clearFlags(vpn, flagMerged | PageTable.flagReadOnly
+			     | PageTable.flagDirty);
+	pageTable.setFlags(vpn, isReadOnlyPage(vpn) ? PageTable.flagReadOnly
+			   : PageTable.flagDirty);
+    }
+
+    /**
+     * Return this process's page table, for the core map to read and clear
+     * the bits of the pages it holds.
+     *
+     * @return	the page table.
+     */
+    PageTable getPageTable() {
+	return pageTable;
+    }
+
+    /**
+     * Give a page that shares a merged frame a private copy of it, so that
+     * it can be written. If memory is full, a page of some process is
+     * replaced to make room.
+     *
+     * @param	vpn	the page.
+     * @return	<tt>true</tt> if the page no longer shares a merged frame.
+     */
+    private boolean breakMerge(int vpn) {
+	int ppn = VMKernel.coreMap.allocate(this, vpn, false);
+	if (ppn == -1)
+	    return false;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// another thread of this process may have done this while we waited
+	// for a frame
+	int shared = -1;
+	if (pageTable.isSet(vpn, flagMerged)) {
+	    shared = pageTable.getPPN(vpn);
+	    Lib.debug(dbgVM, "	copying merged page " + vpn + " from frame "
+		      + shared + " to frame " + ppn);
+
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, shared*pageSize, memory, ppn*pageSize,
+			     pageSize);
+	    if (VMKernel.tlbOwner == this)
+		invalidateTLB(shared);
+
+	    pageTable.set(vpn, ppn, PageTable.flagValid | PageTable.flagUsed
+			  | PageTable.flagDirty);
+	    VMKernel.coreMap.map(ppn);
+	    VMKernel.pageMerger.release(shared, this, vpn, true);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	if (shared == -1) {
+	    VMKernel.coreMap.unmap(ppn);
+	    UserKernel.frameAllocator.free(ppn);
+	}
+	return true;
+    }
+
+    /**
+     * Return whether a page belongs to a read-only section of the
+     * executable.
+     */
+    private boolean isReadOnlyPage(int vpn) {
+	if (vpn >= heapStartVPN)
+	    return false;
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn < section.getFirstVPN() + section.getLength())
+		return section.isReadOnly();
+	}
+	return false;
+    }
+
+    /**
+     * Called by the core map when one of this process's pages is evicted,
+     * to mark the page invalid. A page that was read ahead and never used
+     * shrinks the read-ahead window. Called with interrupts disabled.
+     *
+     * @param	vpn	the page that was evicted.
+     */
+    void pageEvicted(int vpn) {
+	if (pageTable.isSet(vpn, flagReadAhead)) {
+	    readAheadWindow /= 2;
+	    VMKernel.coreMap.numReadAheadWasted++;
+	}
+	pageTable.clearFlags(vpn, PageTable.flagValid | flagReadAhead);
+    }
+
+    /**
+     * Unmap a page and release its frame, if it has one.
+     *
+     * @param	vpn	the virtual page to release.
+     */
+    protected void releasePage(int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = -1;
+	if (pageTable.isSet(vpn, flagMerged)) {
+	    int shared = pageTable.getPPN(vpn);
+	    if (VMKernel.tlbOwner == this)
+		invalidateTLB(shared);
+	    VMKernel.pageMerger.release(shared, this, vpn, false);
+	}
+	else if (UserKernel.zeroPage.isMapped(pageTable, vpn)) {
+	    if (VMKernel.tlbOwner == this)
+		invalidateTLB(UserKernel.zeroPage.getFrame());
+	}
+	else if (pageTable.isSet(vpn, PageTable.flagValid)) {
+	    ppn = pageTable.getPPN(vpn);
+	    if (VMKernel.tlbOwner == this)
+		invalidateTLB(ppn);
+	    VMKernel.coreMap.unmap(ppn);
+	}
+
+	setSwapSlot(vpn, -1);
+	pageTable.remove(vpn);
+
+	Machine.interrupt().restore(intStatus);
+
+	if (ppn != -1)
+	    UserKernel.frameAllocator.free(ppn);
+    }
+
+    /**
+     * Record the swap slot holding a copy of a page, freeing the slot that
+     * held the previous copy, if any.
+     *
+     * @param	vpn	the virtual page.
+     * @param	slot	the new slot, or -1 if the page has no copy in swap.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	int old = pageTable.getSwapSlot(vpn);
+	if (old != -1)
+	    VMKernel.swap.free(old);
+	pageTable.setSwapSlot(vpn, slot);
+    }
+
+    /**
+     * Allocate a demand-paged process to run a program this process execs.
+     *
+     * @return	a new process.
+     */
+    protected UserProcess createChild() {
+	return new VMProcess();
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +497,179 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    int vaddr = processor.readRegister(Processor.regBadVAddr);
+	    if (handleTLBMiss(Processor.pageFromAddress(vaddr)))
+		break;
+	    Lib.debug(dbgProcess, "Handling TLB miss by killing proc");
+	    handleExit(Processor.exceptionTLBMiss, 0);
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    if (vpn >= 0 && vpn < numPages && pageTable.isSet(vpn, flagMerged)
+		&& !isReadOnlyPage(vpn)) {
+		if (breakMerge(vpn))
+		    break;
+		Lib.debug(dbgProcess, "Handling write to merged page by killing proc");
+		handleExit(Processor.exceptionReadOnly, 0);
+		break;
+	    }
+	    super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * Load the translation for a page into the TLB, first bringing the page
+     * into memory if it is not there.
+     *
+     * @param	vpn	the virtual page that missed.
+     * @return	<tt>true</tt> if the TLB now translates the page.
+     */
+    private boolean handleTLBMiss(int vpn) {
+	VMKernel.coreMap.numTLBMisses++;
+
+	while (true) {
+	    // the page must not be replaced between finding it and entering it
+	    // in the TLB
+	    boolean intStatus = Machine.interrupt().disable();
+	    boolean found = VMKernel.coreMap.lookup(this, vpn) != -1
+		|| (vpn >= 0 && vpn < numPages
+		    && (pageTable.isSet(vpn, flagMerged)
+			|| UserKernel.zeroPage.isMapped(pageTable, vpn)));
+	    if (found) {
+		writeTLB(pageTable.getEntry(vpn));
+		if (pageTable.isSet(vpn, flagReadAhead)) {
+		    pageTable.clearFlags(vpn, flagReadAhead);
+		    VMKernel.coreMap.numReadAheadUsed++;
+		}
+	    }
+	    Machine.interrupt().restore(intStatus);
+
+	    if (found)
+		return true;
+
+	    long startTime = Machine.timer().getTime();
+	    if (!handlePageFault(vpn))
+		return false;
+	    VMKernel.coreMap.recordFault(Machine.timer().getTime() - startTime);
+	}
+    }
+
+    /**
+     * Enter a translation in the TLB, in an empty slot if there is one and in
+     * the next slot in turn otherwise. Must be called with interrupts
+     * disabled.
+     */
+    private void writeTLB(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+
+	int slot = -1;
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		slot = i;
+		break;
+	    }
+	}
+
+	if (slot == -1) {
+	    slot = tlbHand;
+	    tlbHand = (tlbHand + 1) % processor.getTLBSize();
+	    syncTLBEntry(slot, processor.readTLBEntry(slot), false);
+	}
+
+	processor.writeTLBEntry(slot, entry);
+    }
+
+    /**
+     * Fold the reference and dirty bits of every TLB entry into this
+     * process's page table. Must be called with interrupts disabled, while
+     * this process owns the TLB.
+     *
+     * @param	clearUsed	<tt>true</tt> to clear the reference bits in the
+     *				TLB afterwards.
+     */
+    void syncTLB(boolean clearUsed) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    syncTLBEntry(i, processor.readTLBEntry(i), clearUsed);
+    }
+
+    private void syncTLBEntry(int slot, TranslationEntry tlbEntry,
+			      boolean clearUsed) {
+	// the page of zeros and merged frames are never written, and never
+	// replaced
+	if (!tlbEntry.valid || tlbEntry.ppn == UserKernel.zeroPage.getFrame()
+	    || VMKernel.pageMerger.isShared(tlbEntry.ppn))
+	    return;
+
+	CoreMap coreMap = VMKernel.coreMap;
+	Lib.assertTrue(coreMap.isMapped(tlbEntry.ppn)
+		       && coreMap.getOwner(tlbEntry.ppn) == this
+		       && coreMap.getVPN(tlbEntry.ppn) == tlbEntry.vpn);
+	int bits = (tlbEntry.used ? PageTable.flagUsed : 0)
+	    | (tlbEntry.dirty ? PageTable.flagDirty : 0);
+	if (bits != 0)
+	    pageTable.setFlags(tlbEntry.vpn, bits);
+
+	if (clearUsed && tlbEntry.used) {
+	    tlbEntry.used = false;
+	    Machine.processor().writeTLBEntry(slot, tlbEntry);
+	}
+    }
+
+    /**
+     * Remove the translation for a frame from the TLB, after folding its bits
+     * into the page table. Must be called with interrupts disabled, while
+     * this process owns the TLB.
+     *
+     * @param	ppn	the frame, or -1 to empty the whole TLB.
+     */
+    void invalidateTLB(int ppn) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && (ppn == -1 || tlbEntry.ppn == ppn)) {
+		syncTLBEntry(i, tlbEntry, false);
+		processor.writeTLBEntry(i, new TranslationEntry());
+	    }
+	}
+    }
+
+    /**
+     * Set in the page table for pages that share a frame merged by the page
+     * merger.
+     */
+    private static final int flagMerged = PageTable.flagSpare;
+    /**
+     * Set in the page table for resident pages that were read ahead and have
+     * not been used yet.
+     */
+    private static final int flagReadAhead = PageTable.flagSpare << 1;
+
+    /** The page whose fault would continue a sequential stream. */
+    private int nextSequentialVPN = -1;
+    /** The number of pages to read ahead of the next sequential fault. */
+    private int readAheadWindow = 0;
+
+    private static final int maxReadAhead =
+	Math.max(0, Config.getInteger("VMKernel.maxReadAhead", 8));
+
+    /** The TLB entries this process had when it was last switched out. */
+    private TranslationEntry[] savedTLB =
+	new TranslationEntry[Machine.processor().getTLBSize()];
+
+    /** The TLB slot to replace next when the TLB is full. */
+    private static int tlbHand = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
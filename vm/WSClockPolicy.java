@@ -0,0 +1,72 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm, a hand sweeps the frames
+ * and clears <tt>used</tt> bits, but each frame also records the time its
+ * page was last seen in use. A page unused for longer than the working set
+ * window, <tt>VMKernel.workingSetWindow</tt> ticks, is outside its owner's
+ * working set. Clean pages outside the working set are replaced first, since
+ * they cost no write; failing that, the first dirty one the hand passed,
+ * and failing that, the page unused for longest.
+ */
+public class WSClockPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+    }
+
+    public void initialize(CoreMap coreMap) {
+	this.coreMap = coreMap;
+	numFrames = coreMap.getNumFrames();
+	lastUsed = new long[numFrames];
+    }
+
+    public void pageMapped(int ppn) {
+	lastUsed[ppn] = Machine.timer().getTime();
+    }
+
+    public void pageUnmapped(int ppn) {
+    }
+
+    public int chooseVictim() {
+	long now = Machine.timer().getTime();
+
+	int dirtyVictim = -1;
+	int oldest = -1;
+	for (int i=0; i<numFrames; i++) {
+	    int ppn = hand;
+	    hand = (hand + 1) % numFrames;
+
+	    if (!coreMap.isReplaceable(ppn))
+		continue;
+
+	    if (coreMap.isUsed(ppn)) {
+		coreMap.clearUsed(ppn);
+		lastUsed[ppn] = now;
+	    }
+
+	    if (now - lastUsed[ppn] > window) {
+		if (!coreMap.isDirty(ppn))
+		    return ppn;
+		if (dirtyVictim == -1)
+		    dirtyVictim = ppn;
+	    }
+
+	    if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest])
+		oldest = ppn;
+	}
+
+	return (dirtyVictim != -1) ? dirtyVictim : oldest;
+    }
+
+    private static final long window =
+	Config.getInteger("VMKernel.workingSetWindow", 20000);
+
+    private CoreMap coreMap;
+    private int numFrames;
+    private long[] lastUsed;
+    private int hand = 0;
+}